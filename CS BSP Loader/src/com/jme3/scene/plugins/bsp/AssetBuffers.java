@@ -0,0 +1,204 @@
+package com.jme3.scene.plugins.bsp;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+
+import org.apache.log4j.Logger;
+
+import com.jme3.asset.AssetInfo;
+
+/**
+ * Gives the loaders a little endian view of a whole asset.
+ * <p/>
+ * If the asset is backed by a file it is mapped with {@link FileChannel#map}
+ * and the lumps are decoded straight from the mapping. That is the case of
+ * the FileLocator, whose stream is the file, and of the {@code file:} URLs
+ * of the ClasspathLocator and UrlLocator, whose URL is read from the asset
+ * info since jME does not give it out. Any other stream is
+ * read into a direct buffer borrowed from a small pool, which grows until the
+ * end of the stream is reached instead of trusting
+ * {@link InputStream#available()}.
+ * <p/>
+ * Every buffer returned by {@link #open(AssetInfo)} must be handed back to
+ * {@link #release(ByteBuffer)} once the loader is done with it, nothing may
+ * keep a view of it afterwards. Assets kept for long, like the WADs, use
+ * {@link #openOwned(AssetInfo)} instead, which never takes from the pool.
+ */
+public class AssetBuffers {
+
+	static Logger logger = Logger.getLogger(AssetBuffers.class);
+
+	/**
+	 * Map file backed assets instead of copying them.
+	 */
+	public static boolean useMemoryMapping = true;
+
+	private final static int MIN_CAPACITY = 64 * 1024;
+	private final static int MAX_POOLED = 4;
+
+	private final static ArrayList<ByteBuffer> pool = new ArrayList<ByteBuffer>();
+
+	/**
+	 * Opens the asset and returns its whole content, positioned at 0 and in
+	 * little endian order.
+	 */
+	public static ByteBuffer open(AssetInfo assetInfo) throws IOException {
+		InputStream inputStream = assetInfo.openStream();
+		try {
+			if (useMemoryMapping) {
+				if (inputStream instanceof FileInputStream)
+					return map(((FileInputStream) inputStream).getChannel());
+				File file = getFile(assetInfo);
+				if (file != null) {
+					RandomAccessFile raf = new RandomAccessFile(file, "r");
+					try {
+						return map(raf.getChannel());
+					} finally {
+						raf.close();
+					}
+				}
+			}
+			return read(inputStream);
+		} finally {
+			inputStream.close();
+		}
+	}
+
+	private static ByteBuffer map(FileChannel channel) throws IOException {
+		ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		return buffer;
+	}
+
+	/**
+	 * Returns the file behind an asset found through a {@code file:} URL,
+	 * null if there is none or the URL cannot be read.
+	 */
+	private static File getFile(AssetInfo assetInfo) {
+		try {
+			for (Field field : assetInfo.getClass().getDeclaredFields()) {
+				if (field.getType() != URL.class)
+					continue;
+				field.setAccessible(true);
+				URL url = (URL) field.get(assetInfo);
+				if (url == null || !"file".equals(url.getProtocol()))
+					return null;
+				File file = new File(url.toURI());
+				return file.isFile() ? file : null;
+			}
+		} catch (IllegalAccessException e) {
+			logger.debug("Cannot read the URL of " + assetInfo.getKey(), e);
+		} catch (URISyntaxException e) {
+			logger.debug("Cannot read the URL of " + assetInfo.getKey(), e);
+		} catch (RuntimeException e) {
+			// the field is not accessible on this runtime
+			logger.debug("Cannot read the URL of " + assetInfo.getKey(), e);
+		}
+		return null;
+	}
+
+	/**
+	 * Opens the asset like {@link #open(AssetInfo)} but returns a buffer the
+	 * caller keeps and never releases. A stream is read into a pooled buffer
+	 * as usual, then copied into a direct buffer of its exact size so the
+	 * pooled one goes back to the pool at once.
+	 */
+	public static ByteBuffer openOwned(AssetInfo assetInfo) throws IOException {
+		ByteBuffer buffer = open(assetInfo);
+		if (!isPooled(buffer)) {
+			return buffer;
+		}
+		ByteBuffer owned = ByteBuffer.allocateDirect(buffer.remaining());
+		owned.put(buffer.duplicate()).flip();
+		owned.order(ByteOrder.LITTLE_ENDIAN);
+		release(buffer);
+		return owned;
+	}
+
+	/**
+	 * Returns a buffer obtained from {@link #open(AssetInfo)}. Mapped buffers
+	 * are left to the garbage collector, pooled ones are kept for the next
+	 * asset.
+	 */
+	public static void release(ByteBuffer buffer) {
+		if (buffer == null || !isPooled(buffer)) {
+			return;
+		}
+		buffer.clear();
+		synchronized (pool) {
+			if (pool.size() < MAX_POOLED) {
+				pool.add(buffer);
+			} else {
+				// keep the biggest ones, maps only ever get larger
+				int smallest = 0;
+				for (int i = 1; i < pool.size(); i++) {
+					if (pool.get(i).capacity() < pool.get(smallest).capacity()) {
+						smallest = i;
+					}
+				}
+				if (pool.get(smallest).capacity() < buffer.capacity()) {
+					pool.set(smallest, buffer);
+				}
+			}
+		}
+	}
+
+	private static boolean isPooled(ByteBuffer buffer) {
+		// every direct buffer is a MappedByteBuffer, the mappings are the
+		// read only ones
+		return buffer.isDirect() && !buffer.isReadOnly();
+	}
+
+	private static ByteBuffer read(InputStream inputStream) throws IOException {
+		ReadableByteChannel channel = Channels.newChannel(inputStream);
+
+		// available() is only a hint, the buffer grows until EOF
+		ByteBuffer buffer = acquire(Math.max(inputStream.available(), MIN_CAPACITY));
+		while (channel.read(buffer) >= 0) {
+			if (!buffer.hasRemaining()) {
+				ByteBuffer larger = acquire(buffer.capacity() * 2);
+				buffer.flip();
+				larger.put(buffer);
+				release(buffer);
+				buffer = larger;
+			}
+		}
+		buffer.flip();
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		return buffer;
+	}
+
+	private static ByteBuffer acquire(int capacity) {
+		synchronized (pool) {
+			int best = -1;
+			for (int i = 0; i < pool.size(); i++) {
+				int c = pool.get(i).capacity();
+				if (c >= capacity && (best < 0 || c < pool.get(best).capacity())) {
+					best = i;
+				}
+			}
+			if (best >= 0) {
+				return pool.remove(best);
+			}
+		}
+
+		int size = Integer.highestOneBit(capacity - 1) << 1;
+		if (size <= 0) {
+			size = capacity;
+		}
+		logger.debug("allocating a pooled buffer of " + size + " bytes");
+		return ByteBuffer.allocateDirect(size);
+	}
+}
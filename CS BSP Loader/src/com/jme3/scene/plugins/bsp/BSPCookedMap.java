@@ -0,0 +1,595 @@
+package com.jme3.scene.plugins.bsp;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+
+import com.jme3.texture.Image;
+import com.jme3.texture.Texture;
+import com.jme3.texture.Texture2D;
+import com.jme3.texture.image.ColorSpace;
+
+/**
+ * A map as it is after the first load, written to a file so the next load
+ * can skip the parsing, the triangulation and the lightmap packing.
+ * <p/>
+ * The file is a header and a list of sections. The header holds the length
+ * and the CRC of the source BSP and the loader settings which change the
+ * output; a file whose header does not match is ignored and written again.
+ * Every section is a 16 byte descriptor (kind, count, byte length) followed
+ * by its data, both aligned on 16 bytes and in the native byte order, so
+ * the file is mapped and the vertex buffers, the index buffers and the
+ * lightmap pages are used as views of the mapping without copying. The
+ * tables of the {@link BSPFile} are copied out of the mapping in bulk, the
+ * PVS stays as the compressed rows of the visibility lump which
+ * {@link BSPVisibility} decompresses on demand.
+ * <p/>
+ * The sections are in a fixed order, changing it means changing
+ * {@link #VERSION}. WAD textures are not part of the file, they are shared
+ * by the maps and resolved on every load.
+ */
+public class BSPCookedMap {
+
+	static Logger logger = Logger.getLogger(BSPCookedMap.class);
+
+	private final static int MAGIC = 0x43505342; // BSPC
+	private final static int VERSION = 1;
+	// tells the byte order of the file when read in the native order
+	private final static int BYTE_ORDER_MARK = 0x01020304;
+	private final static int HEADER_SIZE = 32;
+	private final static int ALIGNMENT = 16;
+
+	// section kinds
+	private final static int BYTES = 1;
+	private final static int SHORTS = 2;
+	private final static int INTS = 3;
+	private final static int FLOATS = 4;
+	private final static int STRINGS = 5;
+
+	private final static Charset UTF8 = Charset.forName("UTF-8");
+
+	private BSPFile bsp;
+	private ByteBuffer textureLump;
+	private int[] regionNodes;
+	private int[][] batches;
+	private Buffer[] batchIndices;
+	private BSPVertexStore vertices;
+	private Texture2D[] lightmaps;
+
+	private BSPCookedMap() {
+	}
+
+	/**
+	 * Returns the CRC of the whole content of a file buffer.
+	 */
+	public static long hash(ByteBuffer file) {
+		CRC32 crc = new CRC32();
+		ByteBuffer data = file.duplicate();
+		data.clear();
+		data.limit(file.limit());
+		byte[] chunk = new byte[64 * 1024];
+		while (data.hasRemaining()) {
+			int n = Math.min(chunk.length, data.remaining());
+			data.get(chunk, 0, n);
+			crc.update(chunk, 0, n);
+		}
+		return crc.getValue();
+	}
+
+	public BSPFile getBSPFile() {
+		return bsp;
+	}
+
+	/**
+	 * Returns the texture lump, for the textures embedded in the map.
+	 */
+	public ByteBuffer getTextureLump() {
+		return textureLump.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * Returns an atlas holding the lightmap pages.
+	 */
+	public LightmapAtlas getLightmapAtlas() {
+		return new LightmapAtlas(bsp, lightmaps);
+	}
+
+	/**
+	 * Gives the triangles and vertices to a builder, which then only
+	 * creates the materials and geometries.
+	 */
+	public void applyTo(BSPMeshBuilder builder) {
+		builder.setLayout(regionNodes, batches, batchIndices, vertices);
+	}
+
+	/**
+	 * Maps a cooked map, returns null if the file does not exist, is not
+	 * of this version or was cooked from another source or with other
+	 * settings.
+	 */
+	public static BSPCookedMap read(File file, long sourceLength, long sourceHash, int settings) throws IOException {
+		if (!file.isFile())
+			return null;
+
+		ByteBuffer data;
+		// a private mapping gives writable buffers without ever touching the
+		// file, but needs a channel opened for writing
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			FileChannel channel = raf.getChannel();
+			if (channel.size() < HEADER_SIZE || channel.size() > Integer.MAX_VALUE)
+				return null;
+			data = channel.map(FileChannel.MapMode.PRIVATE, 0, channel.size());
+		} finally {
+			raf.close();
+		}
+		data.order(ByteOrder.nativeOrder());
+
+		if (data.getInt(0) != MAGIC || data.getInt(4) != VERSION || data.getInt(8) != BYTE_ORDER_MARK
+				|| data.getInt(12) != settings || data.getLong(16) != sourceLength
+				|| data.getLong(24) != sourceHash) {
+			logger.info(file + " is out of date");
+			return null;
+		}
+
+		BSPCookedMap map = new BSPCookedMap();
+		Reader in = new Reader(data);
+		try {
+			map.bsp = readBSPFile(in);
+			map.textureLump = in.section(BYTES);
+
+			map.regionNodes = in.ints();
+			map.batches = new int[5][];
+			for (int i = 0; i < map.batches.length; i++) {
+				map.batches[i] = in.ints();
+			}
+			int numBatches = map.batches[0].length;
+			map.batchIndices = new Buffer[numBatches];
+			for (int i = 0; i < numBatches; i++) {
+				int kind = in.kind();
+				ByteBuffer indices = in.section(kind);
+				map.batchIndices[i] = kind == SHORTS ? indices.asShortBuffer() : indices.asIntBuffer();
+			}
+
+			int numVertices = in.ints()[0];
+			map.vertices = new BSPVertexStore(numVertices, in.section(FLOATS).asFloatBuffer(),
+					in.section(FLOATS).asFloatBuffer(), in.section(FLOATS).asFloatBuffer(),
+					in.section(FLOATS).asFloatBuffer(), in.section(BYTES));
+
+			String[] formats = in.strings();
+			int[] sizes = in.ints();
+			map.lightmaps = new Texture2D[formats.length];
+			for (int i = 0; i < formats.length; i++) {
+				// in sRGB like the pages of the atlas
+				Image image = new Image(Image.Format.valueOf(formats[i]), sizes[i * 2], sizes[i * 2 + 1], in.section(BYTES),
+						ColorSpace.sRGB);
+				Texture2D texture = new Texture2D(image);
+				texture.setMinFilter(Texture.MinFilter.BilinearNoMipMaps);
+				texture.setMagFilter(Texture.MagFilter.Bilinear);
+				texture.setWrap(Texture.WrapMode.EdgeClamp);
+				map.lightmaps[i] = texture;
+			}
+		} catch (RuntimeException e) {
+			// a truncated or damaged file
+			throw new IOException("Invalid cooked map " + file, e);
+		}
+		return map;
+	}
+
+	/**
+	 * Writes the map as it was built. The file is written next to its
+	 * final name and renamed, so a reader never sees half a file.
+	 */
+	public static void write(File file, long sourceLength, long sourceHash, int settings, BSPFile bsp,
+			ByteBuffer textureLump, BSPMeshBuilder builder, LightmapAtlas atlas) throws IOException {
+		file.getAbsoluteFile().getParentFile().mkdirs();
+		File tmp = new File(file.getPath() + ".tmp");
+		RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+		boolean written = false;
+		try {
+			FileChannel channel = raf.getChannel();
+			channel.truncate(0);
+			Writer out = new Writer(channel);
+
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.nativeOrder());
+			header.putInt(MAGIC).putInt(VERSION).putInt(BYTE_ORDER_MARK).putInt(settings);
+			header.putLong(sourceLength).putLong(sourceHash);
+			header.flip();
+			out.write(header);
+
+			writeBSPFile(out, bsp);
+			out.section(BYTES, textureLump.remaining(), textureLump.duplicate());
+
+			out.ints(builder.getRegionNodes());
+			for (int[] table : builder.getBatches()) {
+				out.ints(table);
+			}
+			for (Buffer indices : builder.getBatchIndices()) {
+				out.buffer(indices);
+			}
+
+			BSPVertexStore vertices = builder.getVertices();
+			out.ints(new int[] { vertices.size() });
+			out.buffer(vertices.getPositions());
+			out.buffer(vertices.getNormals());
+			out.buffer(vertices.getTexCoords());
+			out.buffer(vertices.getLightTexCoords());
+			out.buffer(vertices.getColors());
+
+			int numPages = atlas.getNumPages();
+			String[] formats = new String[numPages];
+			int[] sizes = new int[numPages * 2];
+			for (int i = 0; i < numPages; i++) {
+				Image image = atlas.getTexture(i).getImage();
+				formats[i] = image.getFormat().name();
+				sizes[i * 2] = image.getWidth();
+				sizes[i * 2 + 1] = image.getHeight();
+			}
+			out.strings(formats);
+			out.ints(sizes);
+			for (int i = 0; i < numPages; i++) {
+				out.buffer(atlas.getTexture(i).getImage().getData(0));
+			}
+			channel.force(false);
+			written = true;
+		} finally {
+			raf.close();
+			if (!written)
+				tmp.delete();
+		}
+
+		if (!tmp.renameTo(file)) {
+			// the old file may still be mapped by a loaded map
+			file.delete();
+			if (!tmp.renameTo(file)) {
+				tmp.delete();
+				throw new IOException("Cannot replace " + file);
+			}
+		}
+	}
+
+	private static void writeBSPFile(Writer out, BSPFile bsp) throws IOException {
+		out.strings(new String[] { bsp.entities });
+
+		out.floats(bsp.planeNormals);
+		out.floats(bsp.planeDists);
+		out.ints(bsp.planeTypes);
+
+		out.strings(bsp.textureNames);
+		out.ints(bsp.textureWidths);
+		out.ints(bsp.textureHeights);
+		out.ints(bsp.textureOffsets);
+		out.ints(bsp.textureMipOffsets);
+
+		out.floats(bsp.vertices);
+		out.bytes(bsp.visibility);
+
+		out.ints(bsp.nodePlanes);
+		out.shorts(bsp.nodeChildren);
+		out.shorts(bsp.nodeMins);
+		out.shorts(bsp.nodeMaxs);
+		out.ints(bsp.nodeFirstFaces);
+		out.ints(bsp.nodeNumFaces);
+
+		out.floats(bsp.texInfoVecs);
+		out.ints(bsp.texInfoTextures);
+		out.ints(bsp.texInfoFlags);
+
+		out.shorts(bsp.facePlanes);
+		out.shorts(bsp.faceSides);
+		out.ints(bsp.faceFirstEdges);
+		out.shorts(bsp.faceNumEdges);
+		out.shorts(bsp.faceTexInfos);
+		out.bytes(bsp.faceStyles);
+		out.ints(bsp.faceLightOffsets);
+
+		out.bytes(bsp.lighting);
+
+		out.ints(bsp.clipNodePlanes);
+		out.shorts(bsp.clipNodeChildren);
+
+		out.ints(bsp.leafContents);
+		out.ints(bsp.leafVisOffsets);
+		out.shorts(bsp.leafMins);
+		out.shorts(bsp.leafMaxs);
+		out.ints(bsp.leafFirstMarkSurfaces);
+		out.ints(bsp.leafNumMarkSurfaces);
+		out.bytes(bsp.leafAmbients);
+
+		out.ints(bsp.markSurfaces);
+		out.ints(bsp.edges);
+		out.ints(bsp.surfEdges);
+
+		out.floats(bsp.modelMins);
+		out.floats(bsp.modelMaxs);
+		out.floats(bsp.modelOrigins);
+		out.ints(bsp.modelHeadNodes);
+		out.ints(bsp.modelVisLeafs);
+		out.ints(bsp.modelFirstFaces);
+		out.ints(bsp.modelNumFaces);
+	}
+
+	private static BSPFile readBSPFile(Reader in) {
+		BSPFile bsp = new BSPFile();
+		bsp.entities = in.strings()[0];
+
+		bsp.planeNormals = in.floats();
+		bsp.planeDists = in.floats();
+		bsp.planeTypes = in.ints();
+
+		bsp.textureNames = in.strings();
+		bsp.textureWidths = in.ints();
+		bsp.textureHeights = in.ints();
+		bsp.textureOffsets = in.ints();
+		bsp.textureMipOffsets = in.ints();
+
+		bsp.vertices = in.floats();
+		bsp.visibility = in.bytes();
+
+		bsp.nodePlanes = in.ints();
+		bsp.nodeChildren = in.shorts();
+		bsp.nodeMins = in.shorts();
+		bsp.nodeMaxs = in.shorts();
+		bsp.nodeFirstFaces = in.ints();
+		bsp.nodeNumFaces = in.ints();
+
+		bsp.texInfoVecs = in.floats();
+		bsp.texInfoTextures = in.ints();
+		bsp.texInfoFlags = in.ints();
+
+		bsp.facePlanes = in.shorts();
+		bsp.faceSides = in.shorts();
+		bsp.faceFirstEdges = in.ints();
+		bsp.faceNumEdges = in.shorts();
+		bsp.faceTexInfos = in.shorts();
+		bsp.faceStyles = in.bytes();
+		bsp.faceLightOffsets = in.ints();
+
+		bsp.lighting = in.bytes();
+
+		bsp.clipNodePlanes = in.ints();
+		bsp.clipNodeChildren = in.shorts();
+
+		bsp.leafContents = in.ints();
+		bsp.leafVisOffsets = in.ints();
+		bsp.leafMins = in.shorts();
+		bsp.leafMaxs = in.shorts();
+		bsp.leafFirstMarkSurfaces = in.ints();
+		bsp.leafNumMarkSurfaces = in.ints();
+		bsp.leafAmbients = in.bytes();
+
+		bsp.markSurfaces = in.ints();
+		bsp.edges = in.ints();
+		bsp.surfEdges = in.ints();
+
+		bsp.modelMins = in.floats();
+		bsp.modelMaxs = in.floats();
+		bsp.modelOrigins = in.floats();
+		bsp.modelHeadNodes = in.ints();
+		bsp.modelVisLeafs = in.ints();
+		bsp.modelFirstFaces = in.ints();
+		bsp.modelNumFaces = in.ints();
+		return bsp;
+	}
+
+	/**
+	 * Appends aligned sections to a file.
+	 */
+	private static class Writer {
+		private final FileChannel channel;
+		private long position;
+
+		Writer(FileChannel channel) {
+			this.channel = channel;
+		}
+
+		void write(ByteBuffer data) throws IOException {
+			while (data.hasRemaining()) {
+				position += channel.write(data, position);
+			}
+		}
+
+		/**
+		 * Writes a section of count elements, null data is a null array.
+		 */
+		void section(int kind, int count, ByteBuffer data) throws IOException {
+			ByteBuffer descriptor = ByteBuffer.allocate(ALIGNMENT).order(ByteOrder.nativeOrder());
+			descriptor.putInt(kind).putInt(data == null ? -1 : count).putLong(data == null ? 0 : data.remaining());
+			descriptor.flip();
+			write(descriptor);
+			if (data != null) {
+				write(data);
+				int padding = (int) (-position & (ALIGNMENT - 1));
+				write(ByteBuffer.allocate(padding));
+			}
+		}
+
+		void bytes(byte[] a) throws IOException {
+			section(BYTES, a == null ? 0 : a.length, a == null ? null : ByteBuffer.wrap(a));
+		}
+
+		void shorts(short[] a) throws IOException {
+			if (a == null) {
+				section(SHORTS, 0, null);
+				return;
+			}
+			ByteBuffer data = allocate(a.length * 2);
+			data.asShortBuffer().put(a);
+			section(SHORTS, a.length, data);
+		}
+
+		void ints(int[] a) throws IOException {
+			if (a == null) {
+				section(INTS, 0, null);
+				return;
+			}
+			ByteBuffer data = allocate(a.length * 4);
+			data.asIntBuffer().put(a);
+			section(INTS, a.length, data);
+		}
+
+		void floats(float[] a) throws IOException {
+			if (a == null) {
+				section(FLOATS, 0, null);
+				return;
+			}
+			ByteBuffer data = allocate(a.length * 4);
+			data.asFloatBuffer().put(a);
+			section(FLOATS, a.length, data);
+		}
+
+		/**
+		 * Writes every string as its UTF-8 byte length and bytes.
+		 */
+		void strings(String[] a) throws IOException {
+			byte[][] encoded = new byte[a.length][];
+			int length = 0;
+			for (int i = 0; i < a.length; i++) {
+				encoded[i] = a[i].getBytes(UTF8);
+				length += 4 + encoded[i].length;
+			}
+			ByteBuffer data = allocate(length);
+			for (byte[] s : encoded) {
+				data.putInt(s.length).put(s);
+			}
+			data.flip();
+			section(STRINGS, a.length, data);
+		}
+
+		/**
+		 * Writes the whole content of a buffer of the vertex store or of a
+		 * mesh, whatever its position.
+		 */
+		void buffer(Buffer buffer) throws IOException {
+			int count = buffer.limit();
+			if (buffer instanceof ByteBuffer) {
+				ByteBuffer data = ((ByteBuffer) buffer).duplicate();
+				data.clear().limit(count);
+				section(BYTES, count, data);
+			} else if (buffer instanceof ShortBuffer) {
+				ShortBuffer src = ((ShortBuffer) buffer).duplicate();
+				src.clear().limit(count);
+				ByteBuffer data = allocate(count * 2);
+				data.asShortBuffer().put(src);
+				section(SHORTS, count, data);
+			} else if (buffer instanceof IntBuffer) {
+				IntBuffer src = ((IntBuffer) buffer).duplicate();
+				src.clear().limit(count);
+				ByteBuffer data = allocate(count * 4);
+				data.asIntBuffer().put(src);
+				section(INTS, count, data);
+			} else {
+				FloatBuffer src = ((FloatBuffer) buffer).duplicate();
+				src.clear().limit(count);
+				ByteBuffer data = allocate(count * 4);
+				data.asFloatBuffer().put(src);
+				section(FLOATS, count, data);
+			}
+		}
+
+		private static ByteBuffer allocate(int size) {
+			return ByteBuffer.allocate(size).order(ByteOrder.nativeOrder());
+		}
+	}
+
+	/**
+	 * Walks the sections of a mapped file in order.
+	 */
+	private static class Reader {
+		private final ByteBuffer file;
+		private int position = HEADER_SIZE;
+
+		Reader(ByteBuffer file) {
+			this.file = file;
+		}
+
+		/**
+		 * Returns the kind of the next section without moving past it.
+		 */
+		int kind() {
+			return file.getInt(position);
+		}
+
+		/**
+		 * Returns the data of the next section as a native order view of
+		 * the mapping, null for a null array.
+		 */
+		ByteBuffer section(int kind) {
+			if (file.getInt(position) != kind)
+				throw new IllegalStateException("Expected a section of kind " + kind + " at " + position);
+			int count = file.getInt(position + 4);
+			long length = file.getLong(position + 8);
+			position += ALIGNMENT;
+			if (count < 0)
+				return null;
+
+			ByteBuffer view = file.duplicate();
+			view.limit((int) (position + length));
+			view.position(position);
+			position += (int) ((length + ALIGNMENT - 1) & -ALIGNMENT);
+			return view.slice().order(ByteOrder.nativeOrder());
+		}
+
+		byte[] bytes() {
+			ByteBuffer data = section(BYTES);
+			if (data == null)
+				return null;
+			byte[] a = new byte[data.remaining()];
+			data.get(a);
+			return a;
+		}
+
+		short[] shorts() {
+			ByteBuffer data = section(SHORTS);
+			if (data == null)
+				return null;
+			ShortBuffer view = data.asShortBuffer();
+			short[] a = new short[view.remaining()];
+			view.get(a);
+			return a;
+		}
+
+		int[] ints() {
+			ByteBuffer data = section(INTS);
+			if (data == null)
+				return null;
+			IntBuffer view = data.asIntBuffer();
+			int[] a = new int[view.remaining()];
+			view.get(a);
+			return a;
+		}
+
+		float[] floats() {
+			ByteBuffer data = section(FLOATS);
+			if (data == null)
+				return null;
+			FloatBuffer view = data.asFloatBuffer();
+			float[] a = new float[view.remaining()];
+			view.get(a);
+			return a;
+		}
+
+		String[] strings() {
+			int count = file.getInt(position + 4);
+			ByteBuffer data = section(STRINGS);
+			String[] a = new String[count];
+			for (int i = 0; i < count; i++) {
+				byte[] s = new byte[data.getInt()];
+				data.get(s);
+				a[i] = new String(s, UTF8);
+			}
+			return a;
+		}
+	}
+}
@@ -0,0 +1,129 @@
+package com.jme3.scene.plugins.bsp;
+
+import com.jme3.app.Application;
+import com.jme3.app.state.AbstractAppState;
+import com.jme3.app.state.AppStateManager;
+import com.jme3.math.Vector3f;
+import com.jme3.renderer.Camera;
+import com.jme3.scene.Spatial;
+import com.jme3.scene.Spatial.CullHint;
+
+/**
+ * Hides the regions of a {@link BSPWorld} which cannot be seen from the
+ * leaf the camera is in.
+ * <p/>
+ * When the camera enters another leaf, every leaf of its PVS row marks
+ * itself and its ancestors in the BSP tree with the current stamp, so a
+ * region is visible exactly when its tree node is marked. Only regions
+ * whose visibility changed get a new {@link CullHint}. While the camera
+ * stays in the same leaf nothing is done at all.
+ * <p/>
+ * Outside the map, or in a leaf without a PVS row, everything is shown.
+ */
+public class BSPCullingState extends AbstractAppState {
+
+	private final BSPWorld world;
+	private final BSPTree tree;
+	private final BSPVisibility visibility;
+
+	private Camera cam;
+
+	// region spatials by region index
+	private Spatial[] regions;
+	private boolean[] visible;
+
+	// stamp of the last pvs every node was marked by
+	private int[] nodeStamps;
+	private int stamp;
+
+	private int cameraLeaf = -1;
+
+	public BSPCullingState(BSPWorld world) {
+		this.world = world;
+		this.tree = world.getTree();
+		this.visibility = world.getVisibility();
+	}
+
+	/**
+	 * Returns the leaf the camera was in at the last update.
+	 */
+	public int getCameraLeaf() {
+		return cameraLeaf;
+	}
+
+	@Override
+	public void initialize(AppStateManager stateManager, Application app) {
+		super.initialize(stateManager, app);
+		cam = app.getCamera();
+
+		regions = new Spatial[world.getNumRegions()];
+		visible = new boolean[regions.length];
+		for (Spatial child : world.getChildren()) {
+			Integer region = child.getUserData(BSPWorld.REGION);
+			if (region != null) {
+				regions[region] = child;
+				visible[region] = child.getCullHint() != CullHint.Always;
+			}
+		}
+		nodeStamps = new int[tree.getNumNodes()];
+		cameraLeaf = -1;
+	}
+
+	@Override
+	public void update(float tpf) {
+		Vector3f location = cam.getLocation();
+		// jME is y up, the map is z up
+		int leaf = tree.findLeaf(location.x, -location.z, location.y);
+		if (leaf == cameraLeaf)
+			return;
+		cameraLeaf = leaf;
+
+		if (leaf < 1 || leaf > visibility.getNumVisLeafs() || world.getBSPFile().leafVisOffsets[leaf] < 0) {
+			showAll();
+			return;
+		}
+
+		stamp++;
+		for (int other = visibility.nextVisible(leaf, 1); other >= 0; other = visibility.nextVisible(leaf, other + 1)) {
+			mark(other);
+		}
+		// the camera leaf sees itself even if its row does not say so
+		mark(leaf);
+
+		for (int region = 0; region < regions.length; region++) {
+			setVisible(region, nodeStamps[world.getRegionNode(region)] == stamp);
+		}
+	}
+
+	/**
+	 * Marks the ancestors of a leaf, stopping at the first one already
+	 * marked.
+	 */
+	private void mark(int leaf) {
+		int node = tree.getLeafParent(leaf);
+		while (node >= 0 && nodeStamps[node] != stamp) {
+			nodeStamps[node] = stamp;
+			node = tree.getNodeParent(node);
+		}
+	}
+
+	private void showAll() {
+		for (int region = 0; region < regions.length; region++) {
+			setVisible(region, true);
+		}
+	}
+
+	private void setVisible(int region, boolean value) {
+		if (visible[region] == value || regions[region] == null)
+			return;
+		visible[region] = value;
+		regions[region].setCullHint(value ? CullHint.Inherit : CullHint.Always);
+	}
+
+	@Override
+	public void cleanup() {
+		super.cleanup();
+		showAll();
+		cameraLeaf = -1;
+	}
+}
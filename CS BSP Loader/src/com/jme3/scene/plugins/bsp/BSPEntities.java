@@ -0,0 +1,113 @@
+package com.jme3.scene.plugins.bsp;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Parses the entity lump.
+ * <p/>
+ * The lump is a list of blocks in braces, each holding quoted key value
+ * pairs:
+ *
+ * <pre>
+ * {
+ * "classname" "worldspawn"
+ * "wad" "\sierra\half-life\valve\halflife.wad;..."
+ * }
+ * </pre>
+ *
+ * The first entity is always the worldspawn. When a key appears twice in
+ * an entity the last value wins.
+ */
+public class BSPEntities {
+
+	private final List<Map<String, String>> entities = new ArrayList<Map<String, String>>();
+
+	public BSPEntities(String text) {
+		Map<String, String> entity = null;
+		String key = null;
+		int i = 0;
+		int length = text.length();
+		while (i < length) {
+			char c = text.charAt(i);
+			if (c == '{') {
+				entity = new HashMap<String, String>();
+				key = null;
+				i++;
+			} else if (c == '}') {
+				if (entity != null)
+					entities.add(entity);
+				entity = null;
+				i++;
+			} else if (c == '"') {
+				int end = text.indexOf('"', i + 1);
+				if (end < 0)
+					break;
+				String token = text.substring(i + 1, end);
+				if (entity != null) {
+					if (key == null) {
+						key = token;
+					} else {
+						entity.put(key, token);
+						key = null;
+					}
+				}
+				i = end + 1;
+			} else {
+				i++;
+			}
+		}
+	}
+
+	public int size() {
+		return entities.size();
+	}
+
+	public Map<String, String> get(int index) {
+		return entities.get(index);
+	}
+
+	/**
+	 * Returns the worldspawn entity, or an empty map if there is none.
+	 */
+	public Map<String, String> getWorldspawn() {
+		for (Map<String, String> entity : entities) {
+			if ("worldspawn".equals(entity.get("classname")))
+				return entity;
+		}
+		return new HashMap<String, String>();
+	}
+
+	/**
+	 * Returns every entity of a class.
+	 */
+	public List<Map<String, String>> findByClassName(String className) {
+		List<Map<String, String>> result = new ArrayList<Map<String, String>>();
+		for (Map<String, String> entity : entities) {
+			if (className.equals(entity.get("classname")))
+				result.add(entity);
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the file names of the WADs listed by the worldspawn, without
+	 * the directories of the machine the map was compiled on.
+	 */
+	public List<String> getWADs() {
+		List<String> wads = new ArrayList<String>();
+		String value = getWorldspawn().get("wad");
+		if (value == null)
+			return wads;
+		for (String path : value.split(";")) {
+			path = path.trim();
+			if (path.length() == 0)
+				continue;
+			int slash = Math.max(path.lastIndexOf('/'), path.lastIndexOf('\\'));
+			wads.add(path.substring(slash + 1));
+		}
+		return wads;
+	}
+}
@@ -0,0 +1,178 @@
+package com.jme3.scene.plugins.bsp;
+
+/**
+ * The decoded content of a GoldSrc (Half-Life / Counter-Strike) version 30
+ * BSP file.
+ * <p/>
+ * Every lump is kept as flat primitive tables instead of one object per
+ * record. Records with more than one component are stored one after the
+ * other, e.g. the normal of plane i is planeNormals[i * 3 .. i * 3 + 2].
+ * Unsigned shorts of the file are widened to int.
+ */
+public class BSPFile {
+
+	// contents of leafs and clip nodes
+	public final static int CONTENTS_EMPTY = -1;
+	public final static int CONTENTS_SOLID = -2;
+	public final static int CONTENTS_WATER = -3;
+	public final static int CONTENTS_SLIME = -4;
+	public final static int CONTENTS_LAVA = -5;
+	public final static int CONTENTS_SKY = -6;
+	public final static int CONTENTS_ORIGIN = -7;
+	public final static int CONTENTS_CLIP = -8;
+	public final static int CONTENTS_TRANSLUCENT = -15;
+
+	// plane types, 0-2 are axial planes
+	public final static int PLANE_X = 0;
+	public final static int PLANE_Y = 1;
+	public final static int PLANE_Z = 2;
+	public final static int PLANE_ANYX = 3;
+	public final static int PLANE_ANYY = 4;
+	public final static int PLANE_ANYZ = 5;
+
+	// texinfo flags
+	public final static int TEX_SPECIAL = 1; // sky or slime, no lightmap or 256 subdivision
+
+	public final static int MAX_LIGHTSTYLES = 4;
+	public final static int MIPLEVELS = 4;
+
+	/** The entity lump as text */
+	public String entities;
+
+	/** 3 per plane */
+	public float[] planeNormals;
+	public float[] planeDists;
+	public int[] planeTypes;
+
+	/** The miptex directory, offsets are relative to the texture lump, -1 if missing */
+	public String[] textureNames;
+	public int[] textureWidths;
+	public int[] textureHeights;
+	public int[] textureOffsets;
+	/** 4 per texture, relative to the miptex, 0 if the pixels live in a WAD */
+	public int[] textureMipOffsets;
+
+	/** 3 per vertex */
+	public float[] vertices;
+
+	/** The run length compressed visibility rows, see leafVisOffsets */
+	public byte[] visibility;
+
+	public int[] nodePlanes;
+	/** 2 per node, front and back. Negative children are leafs: -(leaf + 1) */
+	public short[] nodeChildren;
+	/** 3 per node */
+	public short[] nodeMins;
+	public short[] nodeMaxs;
+	public int[] nodeFirstFaces;
+	public int[] nodeNumFaces;
+
+	/** 8 per texinfo: s x y z offset, t x y z offset */
+	public float[] texInfoVecs;
+	public int[] texInfoTextures;
+	public int[] texInfoFlags;
+
+	public short[] facePlanes;
+	public short[] faceSides;
+	public int[] faceFirstEdges;
+	public short[] faceNumEdges;
+	public short[] faceTexInfos;
+	/** 4 per face, 255 means unused */
+	public byte[] faceStyles;
+	/** Byte offset into the lighting lump, -1 if the face has no lightmap */
+	public int[] faceLightOffsets;
+
+	/** RGB light samples */
+	public byte[] lighting;
+
+	public int[] clipNodePlanes;
+	/** 2 per clip node. Negative children are contents */
+	public short[] clipNodeChildren;
+
+	public int[] leafContents;
+	/** Byte offset into the visibility lump, -1 if the leaf sees everything */
+	public int[] leafVisOffsets;
+	/** 3 per leaf */
+	public short[] leafMins;
+	public short[] leafMaxs;
+	public int[] leafFirstMarkSurfaces;
+	public int[] leafNumMarkSurfaces;
+	/** 4 per leaf */
+	public byte[] leafAmbients;
+
+	/** Face indices referenced by the leafs */
+	public int[] markSurfaces;
+
+	/** 2 vertex indices per edge */
+	public int[] edges;
+
+	/** Edge indices of the faces, negative edges are walked backwards */
+	public int[] surfEdges;
+
+	/** 3 per model */
+	public float[] modelMins;
+	public float[] modelMaxs;
+	public float[] modelOrigins;
+	/** 4 per model, hull 0 is a node, hulls 1-3 are clip nodes */
+	public int[] modelHeadNodes;
+	public int[] modelVisLeafs;
+	public int[] modelFirstFaces;
+	public int[] modelNumFaces;
+
+	public int getNumPlanes() {
+		return planeDists.length;
+	}
+
+	public int getNumTextures() {
+		return textureNames.length;
+	}
+
+	public int getNumVertices() {
+		return vertices.length / 3;
+	}
+
+	public int getNumNodes() {
+		return nodePlanes.length;
+	}
+
+	public int getNumTexInfos() {
+		return texInfoTextures.length;
+	}
+
+	public int getNumFaces() {
+		return faceFirstEdges.length;
+	}
+
+	public int getNumClipNodes() {
+		return clipNodePlanes.length;
+	}
+
+	public int getNumLeafs() {
+		return leafContents.length;
+	}
+
+	public int getNumEdges() {
+		return edges.length / 2;
+	}
+
+	public int getNumModels() {
+		return modelFirstFaces.length;
+	}
+
+	/**
+	 * Returns true if the pixels of a texture are in the texture lump, false
+	 * if they have to be looked up in the WADs.
+	 */
+	public boolean hasPixels(int texture) {
+		return textureOffsets[texture] >= 0 && textureMipOffsets[texture * MIPLEVELS] != 0;
+	}
+
+	/**
+	 * Returns the index of the i-th vertex of a face, following the sign of
+	 * its surfedge.
+	 */
+	public int getFaceVertex(int face, int i) {
+		int edge = surfEdges[faceFirstEdges[face] + i];
+		return edge >= 0 ? edges[edge * 2] : edges[-edge * 2 + 1];
+	}
+}
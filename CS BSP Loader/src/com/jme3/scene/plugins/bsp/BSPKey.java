@@ -0,0 +1,35 @@
+package com.jme3.scene.plugins.bsp;
+
+import com.jme3.asset.ModelKey;
+
+/**
+ * The key of a map whose load reports its progress to a listener. Loaded
+ * with any other {@link ModelKey} a map is built the same way, silently.
+ */
+public class BSPKey extends ModelKey {
+
+	private transient BSPLoadListener listener;
+
+	public BSPKey(String name) {
+		super(name);
+	}
+
+	public BSPKey(String name, BSPLoadListener listener) {
+		super(name);
+		this.listener = listener;
+	}
+
+	/**
+	 * For serialization only.
+	 */
+	public BSPKey() {
+	}
+
+	public BSPLoadListener getListener() {
+		return listener;
+	}
+
+	public void setListener(BSPLoadListener listener) {
+		this.listener = listener;
+	}
+}
@@ -0,0 +1,52 @@
+package com.jme3.scene.plugins.bsp;
+
+/**
+ * Receives the progress of a map load, see
+ * {@link BSPLoader#loadAsync(com.jme3.asset.AssetManager, String, BSPLoadListener)}.
+ * <p/>
+ * The load goes through the phases below; the lumps and the textures are
+ * decoded in parallel so the phases overlap. Every phase has a weight,
+ * its share in percent of the time de_dust2 takes to load, and the overall
+ * progress is the weighted sum of the progress of the phases. A map loaded
+ * from a cooked file skips most of the phases, they are reported done at
+ * once.
+ * <p/>
+ * The listener is called on the loading threads, it must not touch the
+ * scene graph; use {@link com.jme3.app.Application#enqueue} for that.
+ */
+public interface BSPLoadListener {
+
+	public enum Phase {
+		/** The header and the lump directory, or the cooked file */
+		HEADER(2),
+		/** Decoding the lumps */
+		LUMPS(12),
+		/** Decoding the textures of the map and of its WADs */
+		TEXTURES(25),
+		/** Packing and filling the lightmap pages */
+		LIGHTMAPS(25),
+		/** Triangulating the faces and creating the geometries */
+		MESH(33),
+		/** Decompressing the visibility rows */
+		PVS(3);
+
+		private final float weight;
+
+		private Phase(float weight) {
+			this.weight = weight;
+		}
+
+		public float getWeight() {
+			return weight;
+		}
+	}
+
+	/**
+	 * Called whenever a phase gets further.
+	 *
+	 * @param phase the phase which got further
+	 * @param phaseProgress how much of the phase is done, 0 to 1
+	 * @param progress how much of the whole load is done, 0 to 1
+	 */
+	void progress(Phase phase, float phaseProgress, float progress);
+}
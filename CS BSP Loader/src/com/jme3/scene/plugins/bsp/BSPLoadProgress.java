@@ -0,0 +1,52 @@
+package com.jme3.scene.plugins.bsp;
+
+import com.jme3.scene.plugins.bsp.BSPLoadListener.Phase;
+
+/**
+ * The progress of one load, handed to the steps of the loader. Without a
+ * listener nothing is tracked.
+ * <p/>
+ * All methods are thread safe.
+ */
+class BSPLoadProgress {
+
+	private final BSPLoadListener listener;
+	private final float[] done = new float[Phase.values().length];
+	private final int[] steps = new int[Phase.values().length];
+	private float totalWeight;
+
+	BSPLoadProgress(BSPLoadListener listener) {
+		this.listener = listener;
+		for (Phase phase : Phase.values()) {
+			totalWeight += phase.getWeight();
+		}
+	}
+
+	/**
+	 * Sets how much of a phase is done. A phase never goes back.
+	 */
+	synchronized void update(Phase phase, float phaseProgress) {
+		if (listener == null || phaseProgress <= done[phase.ordinal()])
+			return;
+		done[phase.ordinal()] = Math.min(phaseProgress, 1f);
+		float progress = 0;
+		for (Phase p : Phase.values()) {
+			progress += p.getWeight() * done[p.ordinal()];
+		}
+		listener.progress(phase, done[phase.ordinal()], progress / totalWeight);
+	}
+
+	/**
+	 * Counts one more of the given number of steps of a phase as done.
+	 */
+	synchronized void step(Phase phase, int count) {
+		if (listener == null)
+			return;
+		int step = ++steps[phase.ordinal()];
+		update(phase, count == 0 ? 1f : (float) step / count);
+	}
+
+	void done(Phase phase) {
+		update(phase, 1f);
+	}
+}
@@ -0,0 +1,173 @@
+package com.jme3.scene.plugins.bsp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.apache.log4j.Logger;
+
+import com.jme3.app.Application;
+import com.jme3.app.state.AbstractAppState;
+import com.jme3.app.state.AppStateManager;
+import com.jme3.renderer.RenderManager;
+import com.jme3.scene.Node;
+import com.jme3.scene.Spatial;
+
+/**
+ * Waits for a map loaded with
+ * {@link BSPLoader#loadAsync(com.jme3.asset.AssetManager, String, BSPLoadListener)}
+ * and attaches it to the scene a few regions per frame.
+ * <p/>
+ * Attaching a whole map at once makes the first frame upload every mesh
+ * and texture. Instead, once the load is done, the world is attached
+ * without its regions, and every frame regions are uploaded with
+ * {@link RenderManager#preloadScene(Spatial)} and attached until the frame
+ * budget is spent, at least one region per frame. When the last region is
+ * in, a {@link BSPCullingState} is attached for the world if asked for,
+ * and this state detaches itself.
+ */
+public class BSPLoadState extends AbstractAppState {
+
+	static Logger logger = Logger.getLogger(BSPLoadState.class);
+
+	private final Future<BSPWorld> future;
+	private final Node parent;
+
+	private float frameBudget = 0.004f;
+	private boolean culling = true;
+
+	private AppStateManager stateManager;
+	private RenderManager renderManager;
+
+	private BSPWorld world;
+	// the regions taken out of the world, the first ones are attached again
+	private List<Spatial> regions;
+	private int attached;
+	private Throwable failure;
+
+	/**
+	 * @param future the map being loaded
+	 * @param parent the node the map is attached to
+	 */
+	public BSPLoadState(Future<BSPWorld> future, Node parent) {
+		this.future = future;
+		this.parent = parent;
+	}
+
+	/**
+	 * Sets how many seconds of a frame may be spent uploading and
+	 * attaching regions.
+	 */
+	public void setFrameBudget(float frameBudget) {
+		this.frameBudget = frameBudget;
+	}
+
+	public float getFrameBudget() {
+		return frameBudget;
+	}
+
+	/**
+	 * Sets whether a {@link BSPCullingState} is attached for the map once
+	 * it is in the scene, true by default.
+	 */
+	public void setCulling(boolean culling) {
+		this.culling = culling;
+	}
+
+	/**
+	 * Returns the world once it is loaded, null before.
+	 */
+	public BSPWorld getWorld() {
+		return world;
+	}
+
+	/**
+	 * Returns how much of the world is attached, 0 to 1.
+	 */
+	public float getAttachProgress() {
+		if (regions == null)
+			return 0f;
+		return regions.isEmpty() ? 1f : (float) attached / regions.size();
+	}
+
+	/**
+	 * Returns true once every region is attached.
+	 */
+	public boolean isDone() {
+		return regions != null && attached == regions.size();
+	}
+
+	/**
+	 * Returns why the load failed, null if it did not.
+	 */
+	public Throwable getFailure() {
+		return failure;
+	}
+
+	@Override
+	public void initialize(AppStateManager stateManager, Application app) {
+		super.initialize(stateManager, app);
+		this.stateManager = stateManager;
+		this.renderManager = app.getRenderManager();
+	}
+
+	@Override
+	public void update(float tpf) {
+		if (world == null) {
+			if (!future.isDone())
+				return;
+			if (!takeWorld()) {
+				stateManager.detach(this);
+				return;
+			}
+		}
+
+		long start = System.nanoTime();
+		long budget = (long) (frameBudget * 1e9);
+		while (attached < regions.size()) {
+			Spatial region = regions.get(attached++);
+			renderManager.preloadScene(region);
+			world.attachChild(region);
+			if (System.nanoTime() - start >= budget)
+				break;
+		}
+
+		if (attached == regions.size()) {
+			if (culling)
+				stateManager.attach(new BSPCullingState(world));
+			stateManager.detach(this);
+		}
+	}
+
+	/**
+	 * Takes the loaded world out of the future and attaches it without its
+	 * regions. Returns false if the load failed.
+	 */
+	private boolean takeWorld() {
+		try {
+			world = future.get();
+		} catch (ExecutionException e) {
+			failure = e.getCause();
+		} catch (Exception e) {
+			failure = e;
+		}
+		if (world == null) {
+			if (failure == null)
+				failure = new IllegalStateException("No map was loaded");
+			logger.error("Cannot load the map", failure);
+			return false;
+		}
+
+		regions = new ArrayList<Spatial>();
+		for (Spatial child : world.getChildren()) {
+			if (child.getUserData(BSPWorld.REGION) != null)
+				regions.add(child);
+		}
+		for (Spatial region : regions) {
+			world.detachChild(region);
+		}
+		parent.attachChild(world);
+		return true;
+	}
+}
@@ -1,448 +1,901 @@
 package com.jme3.scene.plugins.bsp;
 
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.nio.channels.Channels;
-import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import org.apache.log4j.Logger;
 
-import trb.jme.imaging.DirectBufferedImage;
-
 import com.jme3.asset.AssetInfo;
+import com.jme3.asset.AssetKey;
+import com.jme3.asset.AssetLoadException;
 import com.jme3.asset.AssetLoader;
 import com.jme3.asset.AssetManager;
 import com.jme3.asset.DesktopAssetManager;
 import com.jme3.asset.plugins.ClasspathLocator;
-import com.jme3.math.Vector3f;
-import com.jme3.scene.Node;
-import com.jme3.scene.plugins.bsp.lumps.tBSPFace;
-import com.jme3.scene.plugins.bsp.lumps.tBSPLeaf;
+import com.jme3.asset.ModelKey;
+import com.jme3.scene.Spatial;
+import com.jme3.scene.plugins.bsp.BSPLoadListener.Phase;
 import com.jme3.scene.plugins.bsp.lumps.tBSPLump;
-import com.jme3.scene.plugins.bsp.lumps.tBSPModel;
-import com.jme3.scene.plugins.bsp.lumps.tBSPNode;
-import com.jme3.scene.plugins.bsp.lumps.tBSPPlane;
-import com.jme3.scene.plugins.bsp.lumps.tBSPVertex;
-import com.jme3.scene.plugins.bsp.lumps.tBSPVisData;
+import com.jme3.texture.Texture;
+import com.jme3.texture.Texture2D;
+import com.jme3.texture.plugins.dxt.DXTCompressor;
+import com.jme3.texture.plugins.wad.WADFile;
+import com.jme3.texture.plugins.wad.WADLoader;
+import com.jme3.util.SkyFactory;
+
+import trb.jme.imaging.TargaFile;
 
 public class BSPLoader implements AssetLoader {
 	
 	public static void main(String[] args) {
-		AssetManager assetManager = new DesktopAssetManager();
+		AssetManager assetManager = new DesktopAssetManager(true);
 		assetManager.registerLocator("/", ClasspathLocator.class);
 		assetManager.registerLoader(BSPLoader.class, "bsp");
-		assetManager.loadModel("cstrike/maps/de_dust2.bsp");
+		assetManager.registerLoader(WADLoader.class, "wad");
+		Future<BSPWorld> world = loadAsync(assetManager, "cstrike/maps/de_dust2.bsp", new BSPLoadListener() {
+			@Override
+			public void progress(Phase phase, float phaseProgress, float progress) {
+				logger.info(String.format("%s %.0f%%, %.0f%% in all", phase, phaseProgress * 100, progress * 100));
+			}
+		});
+		try {
+			world.get();
+		} catch (Exception e) {
+			logger.error("Cannot load the map", e);
+		}
 	}
 
 	static Logger logger = Logger.getLogger(BSPLoader.class);
 
+	private static ExecutorService executor;
+
+	/**
+	 * Sets the executor the lumps are decoded on. By default a shared
+	 * {@link ForkJoinPool} with one thread per core is used.
+	 */
+	public static synchronized void setExecutor(ExecutorService executor) {
+		BSPLoader.executor = executor;
+	}
+
+	public static synchronized ExecutorService getExecutor() {
+		if (executor == null) {
+			executor = new ForkJoinPool();
+		}
+		return executor;
+	}
+
+	private static DXTCompressor compressor;
+
+	/**
+	 * Sets the compressor of the textures and lightmaps, by default they
+	 * are not compressed.
+	 */
+	public static synchronized void setCompressor(DXTCompressor compressor) {
+		BSPLoader.compressor = compressor;
+	}
+
+	public static synchronized DXTCompressor getCompressor() {
+		return compressor;
+	}
+
+	/**
+	 * The visibility of maps whose decompressed rows take at most this
+	 * many bytes is decompressed while loading.
+	 */
+	private final static long MAX_DECOMPRESSED_PVS = 4L * 1024 * 1024;
+
+	private final static ExecutorService loadExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "BSP loader");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	/**
+	 * Loads a map on a background thread, maps are loaded one after the
+	 * other. The decoding steps still run in parallel on
+	 * {@link #getExecutor()}. Cancelling the future interrupts the load.
+	 * Attach the world with a {@link BSPLoadState} to spread the first
+	 * upload of its meshes and textures over several frames.
+	 *
+	 * @param listener receives the progress of the load, may be null
+	 */
+	public static Future<BSPWorld> loadAsync(final AssetManager assetManager, String name, BSPLoadListener listener) {
+		final BSPKey key = new BSPKey(name, listener);
+		return loadExecutor.submit(new Callable<BSPWorld>() {
+			@Override
+			public BSPWorld call() {
+				return (BSPWorld) assetManager.loadAsset(key);
+			}
+		});
+	}
+
+	private static File cookedPath;
+
+	/**
+	 * Sets the folder the cooked maps are kept in. Once set, every map
+	 * loaded as a model is written there after it is built, and the next
+	 * load of the same file with the same settings maps the cooked file
+	 * instead of parsing the BSP, see {@link BSPCookedMap}. null, the
+	 * default, turns cooking off.
+	 */
+	public static synchronized void setCookedPath(File cookedPath) {
+		BSPLoader.cookedPath = cookedPath;
+	}
+
+	public static synchronized File getCookedPath() {
+		return cookedPath;
+	}
+
 	public final static int kEntities = 0; // Stores player/object positions, etc...
 	public final static int kPlanes = 1; // Stores the splitting planes
-	public final static int kTextures = 2; // Stores texture information
+	public final static int kTextures = 2; // Stores the miptex directory
 	public final static int kVertices = 3; // Stores the level vertices
-	public final static int kVisData = 4; // Stores PVS and cluster info (visibility)
+	public final static int kVisData = 4; // Stores the compressed PVS rows
 	public final static int kNodes = 5; // Stores the BSP nodes
+	public final static int kTexInfo = 6; // Stores the texture projections
 	public final static int kFaces = 7; // Stores the faces for the level
-	public final static int kLightVolumes = 8; // Stores extra world lighting
-												// information
+	public final static int kLighting = 8; // Stores the RGB lightmap samples
+	public final static int kClipNodes = 9; // Stores the clip hulls (for
+											// collision)
 	public final static int kLeafs = 10; // Stores the leafs of the nodes
-	public final static int kLeafFaces = 5; // Stores the leaf's indices into
-											// the faces
-	public final static int kLeafBrushes = 6; // Stores the leaf's indices into
-												// the brushes
+	public final static int kMarkSurfaces = 11; // Stores the leaf's indices
+												// into the faces
+	public final static int kEdges = 12; // Stores the face edges
+	public final static int kSurfEdges = 13; // Stores the face's indices into
+												// the edges
 	public final static int kModels = 14; // Stores the info of world models
-	public final static int kBrushes = 8; // Stores the brushes info (for
-											// collision)
-	public final static int kBrushSides = 9; // Stores the brush surfaces info
-	public final static int kMeshVerts = 11; // Stores the model vertices
-												// offsets
-	public final static int kShaders = 12; // Stores the shader files (blending,
-											// anims..)
-	public final static int kLightmaps = 14; // Stores the lightmaps for the
-												// level
-	public final static int kMaxLumps = 17; // A constant to store the number of
+	public final static int kMaxLumps = 15; // A constant to store the number of
 											// lumps
 
 	private tBSPLump lumps[];
-	private tBSPPlane[] planes;
-	private tBSPFace[] faces;
-	private tBSPVertex[] vertices;
-	private tBSPVisData visData;
-	private tBSPLeaf[] leafs;
-	private tBSPNode[] nodes;
-	private tBSPModel[] models;
-	private String[] textures;
-	private int leafFaces[];
-	private int meshVertices[];
-
-	DirectBufferedImage lightmaps[];
+	private BSPFile bsp;
+	private BSPLoadProgress progress;
 
 	ByteBuffer buffer = null;
 
 	@Override
 	public Object load(AssetInfo assetInfo) throws IOException {
-		// 开始读取数据
-		InputStream inputStream = assetInfo.openStream();
-		int totalAvailable = inputStream.available();
-		ReadableByteChannel channel = Channels.newChannel(inputStream);
+		// 开始读取数据，文件直接映射到内存
+		AssetKey<?> key = assetInfo.getKey();
+		progress = new BSPLoadProgress(key instanceof BSPKey ? ((BSPKey) key).getListener() : null);
+		buffer = AssetBuffers.open(assetInfo);
+		try {
+			return read(assetInfo);
+		} finally {
+			AssetBuffers.release(buffer);
+			buffer = null;
+		}
+	}
+
+	/**
+	 * Loads the WADs listed by the worldspawn. They are looked for next to
+	 * the map and in the folder above it (the mod folder), missing ones are
+	 * skipped.
+	 */
+	private List<WADFile> loadWADs(AssetInfo assetInfo) {
+		AssetManager assetManager = assetInfo.getManager();
+		String folder = assetInfo.getKey().getFolder();
+		String parent = folder.length() > 1 ? folder.substring(0, folder.lastIndexOf('/', folder.length() - 2) + 1) : folder;
+
+		List<WADFile> wads = new ArrayList<WADFile>();
+		for (String name : new BSPEntities(bsp.entities).getWADs()) {
+			AssetKey<WADFile> key = null;
+			for (String path : new String[] { folder + name, parent + name }) {
+				if (assetManager.locateAsset(new AssetKey<WADFile>(path)) != null) {
+					key = new AssetKey<WADFile>(path);
+					break;
+				}
+			}
+			if (key == null) {
+				logger.warn("Cannot find " + name);
+				continue;
+			}
+			try {
+				wads.add(assetManager.loadAsset(key));
+			} catch (AssetLoadException e) {
+				logger.warn("Cannot load " + key, e);
+			}
+		}
+		return wads;
+	}
 
+	/**
+	 * Loads the sky box named by the worldspawn from gfx/env in the mod
+	 * folder, six TGAs named after the sky with the side as suffix. The
+	 * map is z up: rt is +x, lf -x, bk +y, ft -y. Returns null if a side is
+	 * missing.
+	 */
+	private Spatial loadSky(AssetInfo assetInfo) {
+		AssetManager assetManager = assetInfo.getManager();
+		String folder = assetInfo.getKey().getFolder();
+		String parent = folder.length() > 1 ? folder.substring(0, folder.lastIndexOf('/', folder.length() - 2) + 1) : folder;
+		String name = new BSPEntities(bsp.entities).getWorldspawn().get("skyname");
+		if (name == null || name.length() == 0)
+			name = "desert";
+
+		// jME order: west (+x), east, north (-z), south, up, down
+		String[] sides = { "rt", "lf", "bk", "ft", "up", "dn" };
+		Texture[] textures = new Texture[sides.length];
+		for (int i = 0; i < sides.length; i++) {
+			String path = parent + "gfx/env/" + name + sides[i] + ".tga";
+			AssetInfo info = assetManager.locateAsset(new AssetKey<Texture>(path));
+			if (info == null) {
+				logger.warn("Cannot find " + path + ", the map has no sky");
+				return null;
+			}
+			ByteBuffer in = null;
+			try {
+				in = AssetBuffers.open(info);
+				textures[i] = new Texture2D(TargaFile.loadImage(in));
+			} catch (IOException e) {
+				logger.warn("Cannot load " + path + ", the map has no sky", e);
+				return null;
+			} finally {
+				if (in != null)
+					AssetBuffers.release(in);
+			}
+		}
+		return SkyFactory.createSky(assetManager, textures[0], textures[1], textures[2], textures[3], textures[4], textures[5]);
+	}
+
+	private Object read(AssetInfo assetInfo) throws IOException {
 		// 读取文件头，检查是否是counter-striker的BSP文件
 		int headerLength = 124;// 文件头的长度
-		ByteBuffer header = ByteBuffer.allocate(headerLength);
-		header.order(ByteOrder.LITTLE_ENDIAN);
-		channel.read(header);
-		header.flip();
+		if (buffer.limit() < headerLength)
+			throw new IOException("Invalid counter-striker BSP file");
 
 		// 检查文件版本
-		int version = header.getInt();
+		int version = buffer.getInt();
 		if (version != 0x1e)
 			throw new IOException("Invalid counter-striker BSP file");
 
+		// 烘焙过的地图直接映射，不再解析
+		File cooked = getCookedFile(assetInfo);
+		long hash = 0;
+		if (cooked != null) {
+			hash = BSPCookedMap.hash(buffer);
+			BSPWorld world = readCooked(assetInfo, cooked, hash);
+			if (world != null)
+				return world;
+		}
+
 		// 读取Lump
-		lumps = new tBSPLump[15];
-		for (int i = 0; i < 15; i++) {
+		lumps = new tBSPLump[kMaxLumps];
+		for (int i = 0; i < kMaxLumps; i++) {
 			lumps[i] = new tBSPLump();
-			lumps[i].offset = header.getInt();
-			lumps[i].length = header.getInt();
+			lumps[i].offset = buffer.getInt();
+			lumps[i].length = buffer.getInt();
 		}
 
-		// 计算文件长度
-		buffer = ByteBuffer.allocate(totalAvailable);
-		buffer.order(ByteOrder.LITTLE_ENDIAN);
-		buffer.put(header);
-		buffer.position(headerLength);
-		channel.read(buffer);
+		logger.info("buffer : " + buffer);
+		progress.done(Phase.HEADER);
+
+		// 每个lump是独立的一段数据，并行解析
+		bsp = new BSPFile();
+		List<Future<Void>> tasks = new ArrayList<Future<Void>>();
+		ExecutorService executor = getExecutor();
+		for (int i = 0; i < kMaxLumps; i++) {
+			tasks.add(executor.submit(new LumpTask(i)));
+		}
 
-		// Ready
-		buffer.flip();
+		// 等待所有lump解析完成，然后检查数据之间的引用
+		join(tasks);
+		validate();
+
+		// 服务器只需要BSP数据，不需要场景
+		if (!(assetInfo.getKey() instanceof ModelKey))
+			return bsp;
+
+		// 把光照贴图打包成几张大纹理
+		LightmapAtlas atlas = new LightmapAtlas(bsp);
+		atlas.setCompressor(getCompressor());
+		atlas.build(getExecutor());
+		progress.done(Phase.LIGHTMAPS);
+
+		// 合并网格，每种材质一个Geometry
+		BSPMeshBuilder builder = createBuilder(assetInfo, atlas, lump(kTextures));
+		BSPWorld world = build(assetInfo, builder);
+
+		// 写出烘焙文件，下次直接映射
+		if (cooked != null) {
+			try {
+				BSPCookedMap.write(cooked, buffer.limit(), hash, getCookedSettings(), bsp, lump(kTextures), builder, atlas);
+			} catch (IOException e) {
+				logger.warn("Cannot write " + cooked, e);
+			}
+		}
 
-		logger.info("buffer : " + buffer);
-		readEntities();
-		readPlanes();
-		readTextures();
-		readVertices();
-		readLightmaps();
-		readLeafs();
-		readLeafFaces();
-		readMeshVertices();
-		readNodes();
-		readModels();
-		readVisData();
-		readFaces();
-
-		// Build scene
-		Node rootNode = new Node("bsp model");
-
-		return rootNode;
-	}
-
-	private void readEntities() throws IOException {
-		buffer.position(lumps[kEntities].offset);
-		int num = lumps[kEntities].length;
-		logger.info(lumps[kEntities] + " entities");
-		byte[] ca = new byte[num];
+		return world;
+	}
 
-		readFully(ca);
-		String s = new String(ca);
-		// System.out.println(s);
+	private BSPMeshBuilder createBuilder(AssetInfo assetInfo, LightmapAtlas atlas, ByteBuffer textureLump) {
+		BSPMeshBuilder builder = new BSPMeshBuilder(bsp);
+		builder.setLightmapAtlas(atlas);
+		builder.setWADs(loadWADs(assetInfo));
+		builder.setTextureLump(textureLump);
+		builder.setExecutor(getExecutor());
+		builder.setCompressor(getCompressor());
+		builder.setProgress(progress);
+		return builder;
 	}
-	
-	private void readPlanes() throws IOException {
 
-		buffer.position(lumps[kPlanes].offset);
-		int num = lumps[kPlanes].length / (4 * 4);
-		
-		logger.info(lumps[kPlanes] + " there are " + num + " planes");
+	private BSPWorld build(AssetInfo assetInfo, BSPMeshBuilder builder) throws IOException {
+		BSPWorld world = builder.build(assetInfo.getManager());
+
+		// 天空盒
+		Spatial sky = loadSky(assetInfo);
+		if (sky != null)
+			world.attachChild(sky);
+
+		// 小地图的PVS提前全部解压
+		BSPVisibility visibility = world.getVisibility();
+		long rowBytes = (visibility.getNumVisLeafs() + 63) / 64 * 8L;
+		if (rowBytes * bsp.getNumLeafs() <= MAX_DECOMPRESSED_PVS)
+			visibility.decompressAll();
+		progress.done(Phase.PVS);
+		return world;
+	}
 
-		planes = new tBSPPlane[num];
-		for (int i = 0; i < num; i++) {
-			planes[i] = new tBSPPlane();
-			planes[i].normal.x = readFloat();
-			planes[i].normal.y = readFloat();
-			planes[i].normal.z = readFloat();
-			planes[i].d = readFloat();
-		}
+	/**
+	 * Returns the cooked file of a map loaded as a model, null if cooking
+	 * is off.
+	 */
+	private static File getCookedFile(AssetInfo assetInfo) {
+		File path = getCookedPath();
+		if (path == null || !(assetInfo.getKey() instanceof ModelKey))
+			return null;
+		String name = assetInfo.getKey().getName().replace('/', '_').replace('\\', '_');
+		return new File(path, name + ".cooked");
+	}
 
+	/**
+	 * Returns the settings which change what is cooked.
+	 */
+	private static int getCookedSettings() {
+		return getCompressor() != null ? 1 : 0;
 	}
 
-	private void readVisData() throws IOException {
-		buffer.position(lumps[kVisData].offset);
-		visData = new tBSPVisData();
-		visData.numOfClusters = readInt();
-		visData.bytesPerCluster = readInt();
-		logger.info("There are " + visData.numOfClusters + " clusters with "
-				+ visData.bytesPerCluster + " bytes of vis data each");
-		visData.pBitsets = new byte[visData.bytesPerCluster
-				* visData.numOfClusters];
-		readFully(visData.pBitsets);
+	/**
+	 * Builds the world from the cooked file, returns null if there is none
+	 * or it is out of date.
+	 */
+	private BSPWorld readCooked(AssetInfo assetInfo, File file, long hash) throws IOException {
+		BSPCookedMap cooked;
+		try {
+			cooked = BSPCookedMap.read(file, buffer.limit(), hash, getCookedSettings());
+		} catch (IOException e) {
+			logger.warn("Cannot read " + file, e);
+			return null;
+		}
+		if (cooked == null)
+			return null;
+
+		bsp = cooked.getBSPFile();
+		progress.done(Phase.HEADER);
+		progress.done(Phase.LUMPS);
+		progress.done(Phase.LIGHTMAPS);
+		BSPMeshBuilder builder = createBuilder(assetInfo, cooked.getLightmapAtlas(), cooked.getTextureLump());
+		cooked.applyTo(builder);
+		logger.info("Loading cooked map " + file);
+		return build(assetInfo, builder);
 	}
 
-	private void readNodes() throws IOException {
+	/**
+	 * Decodes one lump from its own slice of the file.
+	 */
+	private class LumpTask implements Callable<Void> {
+		private final int index;
+		private final ByteBuffer in;
 
-		buffer.position(lumps[kNodes].offset);
-		int num = lumps[kNodes].length / (4 * 9);
-		nodes = new tBSPNode[num];
-		for (int i = 0; i < num; i++) {
-			nodes[i] = new tBSPNode();
-			nodes[i].plane = readInt();
-			nodes[i].front = readInt();
-			nodes[i].back = readInt();
+		LumpTask(int index) throws IOException {
+			this.index = index;
+			this.in = lump(index);
+		}
 
-			nodes[i].mins[0] = readInt();
-			nodes[i].mins[1] = readInt();
-			nodes[i].mins[2] = readInt();
+		@Override
+		public Void call() throws IOException {
+			try {
+				readLump(index, in);
+				progress.step(Phase.LUMPS, kMaxLumps);
+			} catch (BufferUnderflowException e) {
+				throw new IOException("Truncated lump in counter-striker BSP file", e);
+			}
+			return null;
+		}
+	}
 
-			nodes[i].maxs[0] = readInt();
-			nodes[i].maxs[1] = readInt();
-			nodes[i].maxs[2] = readInt();
+	/**
+	 * Returns a little endian view of the lump which does not share the
+	 * position of the file buffer.
+	 */
+	private ByteBuffer lump(int index) throws IOException {
+		tBSPLump lump = lumps[index];
+		if (lump.offset < 0 || lump.length < 0
+				|| lump.offset > buffer.limit() - lump.length)
+			throw new IOException("Invalid lump " + index + " " + lump);
+
+		ByteBuffer view = buffer.duplicate();
+		view.position(lump.offset);
+		view.limit(lump.offset + lump.length);
+		ByteBuffer slice = view.slice();
+		slice.order(ByteOrder.LITTLE_ENDIAN);
+		return slice;
+	}
 
+	/**
+	 * Waits for every task, even after one failed, so nothing is still
+	 * reading the file buffer when it is released.
+	 */
+	private static void join(List<Future<Void>> tasks) throws IOException {
+		Throwable failure = null;
+		boolean interrupted = false;
+		for (Future<Void> task : tasks) {
+			while (true) {
+				try {
+					task.get();
+					break;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				} catch (ExecutionException e) {
+					if (failure == null)
+						failure = e.getCause();
+					break;
+				}
+			}
 		}
 
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+			if (failure == null)
+				throw new InterruptedIOException("BSP loading interrupted");
+		}
+		if (failure instanceof IOException)
+			throw (IOException) failure;
+		if (failure instanceof RuntimeException)
+			throw (RuntimeException) failure;
+		if (failure instanceof Error)
+			throw (Error) failure;
+		if (failure != null)
+			throw new IOException(failure);
 	}
 
-	private void readModels() throws IOException {
+	private void readLump(int index, ByteBuffer in) throws IOException {
+		switch (index) {
+		case kEntities:
+			readEntities(in);
+			break;
+		case kPlanes:
+			readPlanes(in);
+			break;
+		case kTextures:
+			readTextures(in);
+			break;
+		case kVertices:
+			readVertices(in);
+			break;
+		case kVisData:
+			readVisData(in);
+			break;
+		case kNodes:
+			readNodes(in);
+			break;
+		case kTexInfo:
+			readTexInfo(in);
+			break;
+		case kFaces:
+			readFaces(in);
+			break;
+		case kLighting:
+			readLighting(in);
+			break;
+		case kClipNodes:
+			readClipNodes(in);
+			break;
+		case kLeafs:
+			readLeafs(in);
+			break;
+		case kMarkSurfaces:
+			readMarkSurfaces(in);
+			break;
+		case kEdges:
+			readEdges(in);
+			break;
+		case kSurfEdges:
+			readSurfEdges(in);
+			break;
+		case kModels:
+			readModels(in);
+			break;
+		}
+	}
 
-		buffer.position(lumps[kModels].offset);
-		int num = lumps[kModels].length / (4 * 10);
-		models = new tBSPModel[num];
-		for (int i = 0; i < num; i++) {
+	/**
+	 * Checks the references between the lumps once all of them are decoded.
+	 */
+	private void validate() throws IOException {
+		int numPlanes = bsp.getNumPlanes();
+		int numFaces = bsp.getNumFaces();
+		int numLeafs = bsp.getNumLeafs();
+		int numNodes = bsp.getNumNodes();
+		int numClipNodes = bsp.getNumClipNodes();
+
+		for (int i = 0; i < bsp.getNumTexInfos(); i++) {
+			check(bsp.texInfoTextures[i], bsp.getNumTextures(), "Texinfo", i, "texture");
+		}
+		for (int i = 0; i < bsp.edges.length; i++) {
+			check(bsp.edges[i], bsp.getNumVertices(), "Edge", i / 2, "vertex");
+		}
+		for (int i = 0; i < bsp.surfEdges.length; i++) {
+			check(Math.abs(bsp.surfEdges[i]), bsp.getNumEdges(), "Surfedge", i, "edge");
+		}
+		for (int i = 0; i < numFaces; i++) {
+			check(bsp.facePlanes[i], numPlanes, "Face", i, "plane");
+			check(bsp.faceTexInfos[i], bsp.getNumTexInfos(), "Face", i, "texinfo");
+			checkRange(bsp.faceFirstEdges[i], bsp.faceNumEdges[i], bsp.surfEdges.length, "Face", i, "edges");
+			if (bsp.faceNumEdges[i] < 3)
+				throw new IOException("Face " + i + " has only " + bsp.faceNumEdges[i] + " edges");
+			if (bsp.faceLightOffsets[i] >= bsp.lighting.length)
+				throw new IOException("Face " + i + " has invalid light offset " + bsp.faceLightOffsets[i]);
+		}
+		for (int i = 0; i < bsp.markSurfaces.length; i++) {
+			check(bsp.markSurfaces[i], numFaces, "Marksurface", i, "face");
+		}
+		for (int i = 0; i < numNodes; i++) {
+			check(bsp.nodePlanes[i], numPlanes, "Node", i, "plane");
+			checkRange(bsp.nodeFirstFaces[i], bsp.nodeNumFaces[i], numFaces, "Node", i, "faces");
+			for (int j = 0; j < 2; j++) {
+				int child = bsp.nodeChildren[i * 2 + j];
+				if (child >= 0)
+					check(child, numNodes, "Node", i, "child node");
+				else
+					check(-(child + 1), numLeafs, "Node", i, "child leaf");
+			}
+		}
+		for (int i = 0; i < numClipNodes; i++) {
+			check(bsp.clipNodePlanes[i], numPlanes, "Clipnode", i, "plane");
+			for (int j = 0; j < 2; j++) {
+				int child = bsp.clipNodeChildren[i * 2 + j];
+				if (child >= 0)
+					check(child, numClipNodes, "Clipnode", i, "child");
+			}
+		}
+		for (int i = 0; i < numLeafs; i++) {
+			checkRange(bsp.leafFirstMarkSurfaces[i], bsp.leafNumMarkSurfaces[i], bsp.markSurfaces.length, "Leaf", i, "marksurfaces");
+			if (bsp.leafVisOffsets[i] >= bsp.visibility.length)
+				throw new IOException("Leaf " + i + " has invalid vis offset " + bsp.leafVisOffsets[i]);
+		}
+		for (int i = 0; i < bsp.getNumModels(); i++) {
+			checkRange(bsp.modelFirstFaces[i], bsp.modelNumFaces[i], numFaces, "Model", i, "faces");
+			check(bsp.modelHeadNodes[i * 4], numNodes, "Model", i, "head node");
+			for (int hull = 1; hull < 4; hull++) {
+				int head = bsp.modelHeadNodes[i * 4 + hull];
+				if (head >= 0 && numClipNodes > 0)
+					check(head, numClipNodes, "Model", i, "clip node");
+			}
+		}
+		if (bsp.getNumModels() == 0)
+			throw new IOException("Counter-striker BSP file has no world model");
+	}
 
-			models[i] = new tBSPModel();
+	private static void check(int index, int count, String what, int i, String name) throws IOException {
+		if (index < 0 || index >= count)
+			throw new IOException(what + " " + i + " has invalid " + name + " " + index);
+	}
 
-			models[i].min[0] = readFloat();
-			models[i].min[1] = readFloat();
-			models[i].min[2] = readFloat();
+	private static void checkRange(int first, int num, int count, String what, int i, String name) throws IOException {
+		if (first < 0 || num < 0 || first > count - num)
+			throw new IOException(what + " " + i + " has invalid " + name + " " + first + "+" + num);
+	}
 
-			models[i].max[0] = readFloat();
-			models[i].max[1] = readFloat();
-			models[i].max[2] = readFloat();
+	/**
+	 * Returns the number of records in the lump, which has to be a multiple
+	 * of the record size.
+	 */
+	private static int count(ByteBuffer in, int size, String name) throws IOException {
+		if (in.limit() % size != 0)
+			throw new IOException("Invalid " + name + " lump size " + in.limit());
+		return in.limit() / size;
+	}
 
-			models[i].faceIndex = readInt();
-			models[i].numOfFaces = readInt();
-			models[i].brushIndex = readInt();
-			models[i].numOfBrushes = readInt();
-		}
+	private void readEntities(ByteBuffer in) {
+		int num = in.limit();
+		logger.info(lumps[kEntities] + " entities");
+		byte[] ca = new byte[num];
 
+		in.get(ca);
+		bsp.entities = getString(ca);
 	}
 
-	private void readLightmaps() throws IOException {
+	private void readPlanes(ByteBuffer in) throws IOException {
 
-		buffer.position(lumps[kLightmaps].offset);
-		int num = lumps[kLightmaps].length / (128 * 128 * 3);
-		logger.info("there are " + num + " lightmaps");
+		int num = count(in, 20, "plane");
 
-		lightmaps = new DirectBufferedImage[num];
+		logger.info(lumps[kPlanes] + " there are " + num + " planes");
+
+		bsp.planeNormals = new float[num * 3];
+		bsp.planeDists = new float[num];
+		bsp.planeTypes = new int[num];
 		for (int i = 0; i < num; i++) {
-			lightmaps[i] = DirectBufferedImage.getDirectImageRGB(128, 128);
-			readFully(lightmaps[i].getBackingStore());
+			bsp.planeNormals[i * 3] = in.getFloat();
+			bsp.planeNormals[i * 3 + 1] = in.getFloat();
+			bsp.planeNormals[i * 3 + 2] = in.getFloat();
+			bsp.planeDists[i] = in.getFloat();
+			bsp.planeTypes[i] = in.getInt();
 		}
+
 	}
 
-	private void readTextures() throws IOException {
+	private void readTextures(ByteBuffer in) throws IOException {
 
-		buffer.position(lumps[kTextures].offset);
-		int num = lumps[kTextures].length / (16 + 2 * 4);
-		logger.info(lumps[kTextures] + "there are " + num + " textures");
+		int num = in.limit() == 0 ? 0 : in.getInt();
+		if (num < 0 || num > (in.limit() - 4) / 4)
+			throw new IOException("Invalid texture count " + num);
+		logger.info(lumps[kTextures] + " there are " + num + " textures");
+
+		bsp.textureNames = new String[num];
+		bsp.textureWidths = new int[num];
+		bsp.textureHeights = new int[num];
+		bsp.textureOffsets = new int[num];
+		bsp.textureMipOffsets = new int[num * BSPFile.MIPLEVELS];
+		for (int i = 0; i < num; i++) {
+			bsp.textureOffsets[i] = in.getInt(4 + i * 4);
+		}
 
 		byte[] ca = new byte[16];
-		textures = new String[num];
 		for (int i = 0; i < num; i++) {
-			readFully(ca);
-			String s = new String(ca);
-			readInt();
-			readInt();
-			//s = s.substring(0, s.indexOf(0));
-			textures[i] = s;
-			
-			logger.info(s);
+			int offset = bsp.textureOffsets[i];
+			if (offset < 0 || offset > in.limit() - 40) {
+				// missing miptex
+				bsp.textureOffsets[i] = -1;
+				bsp.textureNames[i] = "";
+				continue;
+			}
+			in.position(offset);
+			in.get(ca);
+			bsp.textureNames[i] = getString(ca);
+			bsp.textureWidths[i] = in.getInt();
+			bsp.textureHeights[i] = in.getInt();
+			for (int j = 0; j < BSPFile.MIPLEVELS; j++) {
+				bsp.textureMipOffsets[i * BSPFile.MIPLEVELS + j] = in.getInt();
+			}
 		}
 	}
 
-	private void readLeafs() throws IOException {
+	private void readVertices(ByteBuffer in) throws IOException {
 
-		buffer.position(lumps[kLeafs].offset);
-		int num = lumps[kLeafs].length / (12 * 4);
-		logger.info("there are " + num + " leafs");
+		int num = count(in, 3 * 4, "vertex");
+		logger.info("there are " + num + " vertices");
 
-		leafs = new tBSPLeaf[num];
-		for (int i = 0; i < num; i++) {
-			leafs[i] = new tBSPLeaf();
-			leafs[i].cluster = readInt();
-			leafs[i].area = readInt();
+		bsp.vertices = new float[num * 3];
+		in.asFloatBuffer().get(bsp.vertices);
+	}
 
-			leafs[i].mins[0] = readInt();
-			leafs[i].mins[1] = readInt();
-			leafs[i].mins[2] = readInt();
+	private void readVisData(ByteBuffer in) {
+		logger.info("there are " + in.limit() + " bytes of compressed vis data");
+		bsp.visibility = new byte[in.limit()];
+		in.get(bsp.visibility);
+	}
+
+	private void readNodes(ByteBuffer in) throws IOException {
 
-			leafs[i].maxs[0] = readInt();
-			leafs[i].maxs[1] = readInt();
-			leafs[i].maxs[2] = readInt();
+		int num = count(in, 24, "node");
+		logger.info("there are " + num + " nodes");
 
-			leafs[i].leafface = readInt();
-			leafs[i].numOfLeafFaces = readInt();
+		bsp.nodePlanes = new int[num];
+		bsp.nodeChildren = new short[num * 2];
+		bsp.nodeMins = new short[num * 3];
+		bsp.nodeMaxs = new short[num * 3];
+		bsp.nodeFirstFaces = new int[num];
+		bsp.nodeNumFaces = new int[num];
+		for (int i = 0; i < num; i++) {
+			bsp.nodePlanes[i] = in.getInt();
+			bsp.nodeChildren[i * 2] = in.getShort();
+			bsp.nodeChildren[i * 2 + 1] = in.getShort();
 
-			leafs[i].leafBrush = readInt();
-			leafs[i].numOfLeafBrushes = readInt();
+			bsp.nodeMins[i * 3] = in.getShort();
+			bsp.nodeMins[i * 3 + 1] = in.getShort();
+			bsp.nodeMins[i * 3 + 2] = in.getShort();
 
+			bsp.nodeMaxs[i * 3] = in.getShort();
+			bsp.nodeMaxs[i * 3 + 1] = in.getShort();
+			bsp.nodeMaxs[i * 3 + 2] = in.getShort();
+
+			bsp.nodeFirstFaces[i] = in.getShort() & 0xffff;
+			bsp.nodeNumFaces[i] = in.getShort() & 0xffff;
 		}
+
 	}
 
-	private void readLeafFaces() throws IOException {
+	private void readTexInfo(ByteBuffer in) throws IOException {
 
-		buffer.position(lumps[kLeafFaces].offset);
-		int num = lumps[kLeafFaces].length / 4;
-		logger.info("there are " + num + " leaf faces");
+		int num = count(in, 40, "texinfo");
+		logger.info("there are " + num + " texinfos");
 
-		leafFaces = new int[num];
+		bsp.texInfoVecs = new float[num * 8];
+		bsp.texInfoTextures = new int[num];
+		bsp.texInfoFlags = new int[num];
 		for (int i = 0; i < num; i++) {
-			leafFaces[i] = readInt();
+			for (int j = 0; j < 8; j++) {
+				bsp.texInfoVecs[i * 8 + j] = in.getFloat();
+			}
+			bsp.texInfoTextures[i] = in.getInt();
+			bsp.texInfoFlags[i] = in.getInt();
 		}
-
 	}
 
-	private void readMeshVertices() throws IOException {
+	private void readFaces(ByteBuffer in) throws IOException {
 
-		buffer.position(lumps[kMeshVerts].offset);
-		int num = lumps[kMeshVerts].length / 4;
-		logger.info("there are " + num + " mesh vertices");
+		int num = count(in, 20, "face");
+		logger.info("there are " + num + " faces");
 
-		meshVertices = new int[num];
+		bsp.facePlanes = new short[num];
+		bsp.faceSides = new short[num];
+		bsp.faceFirstEdges = new int[num];
+		bsp.faceNumEdges = new short[num];
+		bsp.faceTexInfos = new short[num];
+		bsp.faceStyles = new byte[num * BSPFile.MAX_LIGHTSTYLES];
+		bsp.faceLightOffsets = new int[num];
 		for (int i = 0; i < num; i++) {
-			meshVertices[i] = readInt();
+			bsp.facePlanes[i] = in.getShort();
+			bsp.faceSides[i] = in.getShort();
+			bsp.faceFirstEdges[i] = in.getInt();
+			bsp.faceNumEdges[i] = in.getShort();
+			bsp.faceTexInfos[i] = in.getShort();
+			in.get(bsp.faceStyles, i * BSPFile.MAX_LIGHTSTYLES, BSPFile.MAX_LIGHTSTYLES);
+			bsp.faceLightOffsets[i] = in.getInt();
 		}
 
 	}
 
-	private void readVertices() throws IOException {
+	private void readLighting(ByteBuffer in) {
+		logger.info("there are " + in.limit() / 3 + " light samples");
+		bsp.lighting = new byte[in.limit()];
+		in.get(bsp.lighting);
+	}
 
-		buffer.position(lumps[kVertices].offset);
-		int num = lumps[kVertices].length / (11 * 4);
-		logger.info("there are " + num + " vertices");
+	private void readClipNodes(ByteBuffer in) throws IOException {
 
-		vertices = new tBSPVertex[num];
-		for (int i = 0; i < num; i++) {
+		int num = count(in, 8, "clipnode");
+		logger.info("there are " + num + " clip nodes");
 
-			vertices[i] = new tBSPVertex();
-			vertices[i].position.x = readFloat();
-			vertices[i].position.y = readFloat();
-			vertices[i].position.z = readFloat();
-
-			vertices[i].texCoord.x = readFloat();
-			vertices[i].texCoord.y = readFloat();
+		bsp.clipNodePlanes = new int[num];
+		bsp.clipNodeChildren = new short[num * 2];
+		for (int i = 0; i < num; i++) {
+			bsp.clipNodePlanes[i] = in.getInt();
+			bsp.clipNodeChildren[i * 2] = in.getShort();
+			bsp.clipNodeChildren[i * 2 + 1] = in.getShort();
+		}
+	}
 
-			vertices[i].lightTexCoord.x = readFloat();
-			vertices[i].lightTexCoord.y = readFloat();
+	private void readLeafs(ByteBuffer in) throws IOException {
 
-			vertices[i].normal.x = readFloat();
-			vertices[i].normal.y = readFloat();
-			vertices[i].normal.z = readFloat();
+		int num = count(in, 28, "leaf");
+		logger.info("there are " + num + " leafs");
 
-			int r = buffer.get();
-			if (r < 0)
-				r = -r + 127;
+		bsp.leafContents = new int[num];
+		bsp.leafVisOffsets = new int[num];
+		bsp.leafMins = new short[num * 3];
+		bsp.leafMaxs = new short[num * 3];
+		bsp.leafFirstMarkSurfaces = new int[num];
+		bsp.leafNumMarkSurfaces = new int[num];
+		bsp.leafAmbients = new byte[num * 4];
+		for (int i = 0; i < num; i++) {
+			bsp.leafContents[i] = in.getInt();
+			bsp.leafVisOffsets[i] = in.getInt();
 
-			int g = buffer.get();
-			if (g < 0)
-				g = -g + 127;
+			bsp.leafMins[i * 3] = in.getShort();
+			bsp.leafMins[i * 3 + 1] = in.getShort();
+			bsp.leafMins[i * 3 + 2] = in.getShort();
 
-			int b = buffer.get();
-			if (b < 0)
-				b = -b + 127;
+			bsp.leafMaxs[i * 3] = in.getShort();
+			bsp.leafMaxs[i * 3 + 1] = in.getShort();
+			bsp.leafMaxs[i * 3 + 2] = in.getShort();
 
-			int a = buffer.get();
-			if (a < 0)
-				a = -a + 127;
+			bsp.leafFirstMarkSurfaces[i] = in.getShort() & 0xffff;
+			bsp.leafNumMarkSurfaces[i] = in.getShort() & 0xffff;
 
-			vertices[i].color.r = (float) (r) / 255f;
-			vertices[i].color.g = (float) (g) / 255f;
-			vertices[i].color.b = (float) (b) / 255f;
-			vertices[i].color.a = (float) (a) / 255f;
+			in.get(bsp.leafAmbients, i * 4, 4);
 		}
-
 	}
 
-	private void readFaces() throws IOException {
+	private void readMarkSurfaces(ByteBuffer in) throws IOException {
 
-		buffer.position(lumps[kFaces].offset);
-		int num = lumps[kFaces].length / (26 * 4);
-		logger.info("there are " + num + " faces");
+		int num = count(in, 2, "marksurface");
+		logger.info("there are " + num + " mark surfaces");
 
-		faces = new tBSPFace[num];
+		bsp.markSurfaces = new int[num];
 		for (int i = 0; i < num; i++) {
-			faces[i] = new tBSPFace();
-			faces[i].textureID = readInt();
-			faces[i].effect = readInt();
-			faces[i].type = readInt();
-			faces[i].vertexIndex = readInt();
-			faces[i].numOfVerts = readInt();
-			faces[i].meshVertIndex = readInt();
-			faces[i].numMeshVerts = readInt();
-			faces[i].lightmapID = readInt();
-			faces[i].lMapCorner[0] = readInt();
-			faces[i].lMapCorner[1] = readInt();
-
-			faces[i].lMapSize[0] = readInt();
-			faces[i].lMapSize[1] = readInt();
-
-			faces[i].lMapPos[0] = readFloat();
-			faces[i].lMapPos[1] = readFloat();
-			faces[i].lMapPos[2] = readFloat();
+			bsp.markSurfaces[i] = in.getShort() & 0xffff;
+		}
 
-			faces[i].lMapBitsets[0][0] = readFloat();
-			faces[i].lMapBitsets[0][1] = readFloat();
-			faces[i].lMapBitsets[0][2] = readFloat();
+	}
 
-			faces[i].lMapBitsets[1][0] = readFloat();
-			faces[i].lMapBitsets[1][1] = readFloat();
-			faces[i].lMapBitsets[1][2] = readFloat();
+	private void readEdges(ByteBuffer in) throws IOException {
 
-			faces[i].vNormal[0] = readFloat();
-			faces[i].vNormal[1] = readFloat();
-			faces[i].vNormal[2] = readFloat();
+		int num = count(in, 4, "edge");
+		logger.info("there are " + num + " edges");
 
-			faces[i].size[0] = readInt();
-			faces[i].size[1] = readInt();
+		bsp.edges = new int[num * 2];
+		for (int i = 0; i < num * 2; i++) {
+			bsp.edges[i] = in.getShort() & 0xffff;
 		}
 
 	}
 
-	public int readInt() {
-		return buffer.getInt();
+	private void readSurfEdges(ByteBuffer in) throws IOException {
+
+		int num = count(in, 4, "surfedge");
+		logger.info("there are " + num + " surf edges");
+
+		bsp.surfEdges = new int[num];
+		in.asIntBuffer().get(bsp.surfEdges);
 	}
 
-	public float readFloat() throws IOException {
-		return buffer.getFloat();
+	private void readModels(ByteBuffer in) throws IOException {
+
+		int num = count(in, 64, "model");
+		logger.info("there are " + num + " models");
+
+		bsp.modelMins = new float[num * 3];
+		bsp.modelMaxs = new float[num * 3];
+		bsp.modelOrigins = new float[num * 3];
+		bsp.modelHeadNodes = new int[num * 4];
+		bsp.modelVisLeafs = new int[num];
+		bsp.modelFirstFaces = new int[num];
+		bsp.modelNumFaces = new int[num];
+		for (int i = 0; i < num; i++) {
+			for (int j = 0; j < 3; j++)
+				bsp.modelMins[i * 3 + j] = in.getFloat();
+			for (int j = 0; j < 3; j++)
+				bsp.modelMaxs[i * 3 + j] = in.getFloat();
+			for (int j = 0; j < 3; j++)
+				bsp.modelOrigins[i * 3 + j] = in.getFloat();
+			for (int j = 0; j < 4; j++)
+				bsp.modelHeadNodes[i * 4 + j] = in.getInt();
+
+			bsp.modelVisLeafs[i] = in.getInt();
+			bsp.modelFirstFaces[i] = in.getInt();
+			bsp.modelNumFaces[i] = in.getInt();
+		}
+
 	}
 
 	/**
-	 * Reads 3 floats x,z,y from the chunkbuffer. Since 3ds has z as up and y as
-	 * pointing in whereas java3d has z as pointing forward and y as pointing
-	 * up; this returns new Point3f(x,-z,y)
+	 * Returns the zero terminated string in a fixed size name field.
 	 */
-	public Vector3f getVector3f() {
-		float x = buffer.getFloat();
-		float z = -buffer.getFloat();
-		float y = buffer.getFloat();
-
-		return new Vector3f(x, y, z);
+	public static String getString(byte[] name) {
+		int end = 0;
+		while (end < name.length && name[end] != 0)
+			end++;
+		return new String(name, 0, end, Charset.forName("ISO-8859-1"));
 	}
 
 	/**
 	 * This reads bytes until it gets 0x00 and returns the corresponding string.
 	 */
-	public String getString() {
+	public static String getString(ByteBuffer in) {
 		StringBuffer stringBuffer = new StringBuffer();
-		char charIn = (char) buffer.get();
+		char charIn = (char) in.get();
 		while (charIn != 0x00) {
 			stringBuffer.append(charIn);
-			charIn = (char) buffer.get();
+			charIn = (char) in.get();
 		}
 		return stringBuffer.toString();
 	}
-
-	public void readFully(byte[] data) {
-		buffer.get(data);
-	}
 }
@@ -0,0 +1,616 @@
+package com.jme3.scene.plugins.bsp;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.apache.log4j.Logger;
+
+import com.jme3.asset.AssetManager;
+import com.jme3.material.Material;
+import com.jme3.math.ColorRGBA;
+import com.jme3.scene.Geometry;
+import com.jme3.scene.Mesh;
+import com.jme3.scene.Node;
+import com.jme3.scene.VertexBuffer.Type;
+import com.jme3.scene.plugins.bsp.BSPLoadListener.Phase;
+import com.jme3.texture.Image;
+import com.jme3.texture.Texture;
+import com.jme3.texture.Texture2D;
+import com.jme3.texture.plugins.dxt.DXTCompressor;
+import com.jme3.texture.plugins.wad.MipTex;
+import com.jme3.texture.plugins.wad.PaletteExpander;
+import com.jme3.texture.plugins.wad.WADFile;
+import com.jme3.texture.plugins.wad.WADTextureCache;
+import com.jme3.util.BufferUtils;
+
+/**
+ * Turns the faces of the world model into a few batched geometries.
+ * <p/>
+ * The faces are first split into regions of the BSP tree: a node whose
+ * subtree holds at most {@link #setMaxRegionFaces(int) maxRegionFaces}
+ * faces becomes one region, the faces stored in bigger nodes form a region
+ * of their own. Every face is triangulated as a fan and its triangles are
+ * put into the bucket of its (region, texture, lightmap page), the page
+ * comes from the {@link LightmapAtlas} if one is set. Each bucket becomes
+ * one {@link Geometry}, so the number of draw calls is the number of
+ * distinct materials per region instead of the number of faces, and whole
+ * regions can be culled with the PVS. All buckets share one
+ * {@link BSPVertexStore}; the vertices of a bucket are contiguous in it
+ * and the bucket mesh is a slice of the store, indexed with 16 bit indices
+ * whenever the bucket has at most 65536 vertices.
+ */
+public class BSPMeshBuilder {
+
+	static Logger logger = Logger.getLogger(BSPMeshBuilder.class);
+
+	/**
+	 * Textures which are never drawn.
+	 */
+	private final static String[] INVISIBLE = { "sky", "clip", "null", "origin", "aaatrigger" };
+
+	private final BSPFile bsp;
+
+	private LightmapAtlas atlas;
+
+	private List<WADFile> wads = Collections.emptyList();
+	private WADTextureCache.Lease textures;
+	private ByteBuffer textureLump;
+	private Texture2D[] colorMaps;
+
+	private ExecutorService executor;
+	private DXTCompressor compressor;
+
+	private int maxRegionFaces = 512;
+
+	private BSPLoadProgress progress = new BSPLoadProgress(null);
+
+	private BSPVertexStore vertices;
+
+	// the geometries, sorted by region then material
+	private int[] regionNodes;
+	private int[] batchRegions;
+	private int[] batchTextures;
+	private int[] batchPages;
+	private int[] batchVertexStarts;
+	private int[] batchVertexCounts;
+	private Buffer[] batchIndices;
+
+	public BSPMeshBuilder(BSPFile bsp) {
+		this.bsp = bsp;
+	}
+
+	/**
+	 * Sets the packed lightmaps of the faces, faces on different pages never
+	 * share a bucket.
+	 */
+	public void setLightmapAtlas(LightmapAtlas atlas) {
+		this.atlas = atlas;
+	}
+
+	/**
+	 * Sets the WADs the textures are looked up in, in the order of the
+	 * worldspawn.
+	 */
+	public void setWADs(List<WADFile> wads) {
+		this.wads = wads;
+	}
+
+	/**
+	 * Sets the texture lump the embedded textures are decoded from. The
+	 * buffer is only used during {@link #build(AssetManager)}.
+	 */
+	public void setTextureLump(ByteBuffer textureLump) {
+		this.textureLump = textureLump;
+	}
+
+	/**
+	 * Sets the executor the textures are decoded on, without one they are
+	 * decoded on the calling thread.
+	 */
+	public void setExecutor(ExecutorService executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * Sets the compressor of the textures, null keeps them uncompressed.
+	 */
+	public void setCompressor(DXTCompressor compressor) {
+		this.compressor = compressor;
+	}
+
+	/**
+	 * Sets the number of faces below which a subtree of the BSP tree is not
+	 * split any further. Smaller regions cull better but need more draw
+	 * calls.
+	 */
+	public void setMaxRegionFaces(int maxRegionFaces) {
+		this.maxRegionFaces = maxRegionFaces;
+	}
+
+	/**
+	 * Sets where the progress of the build is reported.
+	 */
+	void setProgress(BSPLoadProgress progress) {
+		this.progress = progress;
+	}
+
+	/**
+	 * Returns the vertices of the last build, in the z up space of the map.
+	 */
+	public BSPVertexStore getVertices() {
+		return vertices;
+	}
+
+	/**
+	 * Returns the tree node of every region of the last build.
+	 */
+	int[] getRegionNodes() {
+		return regionNodes;
+	}
+
+	/**
+	 * Returns the geometries of the last build as flat tables: region,
+	 * texture, lightmap page, first vertex and vertex count.
+	 */
+	int[][] getBatches() {
+		return new int[][] { batchRegions, batchTextures, batchPages, batchVertexStarts, batchVertexCounts };
+	}
+
+	/**
+	 * Returns the index buffer of every geometry of the last build, short
+	 * or int buffers.
+	 */
+	Buffer[] getBatchIndices() {
+		return batchIndices;
+	}
+
+	/**
+	 * Sets the triangles and vertices of a previous build, so that
+	 * {@link #build(AssetManager)} only creates the materials and the
+	 * geometries.
+	 */
+	void setLayout(int[] regionNodes, int[][] batches, Buffer[] indices, BSPVertexStore vertices) {
+		this.regionNodes = regionNodes;
+		this.batchRegions = batches[0];
+		this.batchTextures = batches[1];
+		this.batchPages = batches[2];
+		this.batchVertexStarts = batches[3];
+		this.batchVertexCounts = batches[4];
+		this.batchIndices = indices;
+		this.vertices = vertices;
+	}
+
+	public BSPWorld build(AssetManager assetManager) throws IOException {
+		if (batchIndices == null)
+			layout();
+		progress.update(Phase.MESH, 0.5f);
+
+		int numTextures = bsp.getNumTextures();
+		int numBatches = batchIndices.length;
+		boolean[] used = new boolean[numTextures];
+		for (int i = 0; i < numBatches; i++) {
+			used[batchTextures[i]] = true;
+		}
+
+		BSPWorld world = new BSPWorld("bsp model", bsp, regionNodes);
+		// the map holds its wad textures until it is released
+		textures = WADTextureCache.getInstance().lease(compressor);
+		world.setTextureLease(textures);
+		try {
+			colorMaps = resolveTextures(used);
+		} catch (InterruptedIOException e) {
+			textures.release();
+			textures = null;
+			throw e;
+		}
+		// the lump is a view of the file buffer, which goes back to the pool
+		textureLump = null;
+
+		// the batches are sorted by region, then material
+		int numPages = atlas == null ? 1 : atlas.getNumPages();
+		Material[] textureMaterials = new Material[numTextures];
+		Material[] materials = new Material[numTextures * numPages];
+		Node regionNode = null;
+		for (int i = 0; i < numBatches; i++) {
+			int texture = batchTextures[i];
+			int page = batchPages[i];
+			int material = texture * numPages + page;
+			if (textureMaterials[texture] == null)
+				textureMaterials[texture] = createMaterial(assetManager, texture);
+			if (materials[material] == null)
+				materials[material] = applyLightmap(textureMaterials[texture], page);
+
+			int region = batchRegions[i];
+			if (regionNode == null || i == 0 || batchRegions[i - 1] != region) {
+				regionNode = new Node("region#" + region);
+				regionNode.setUserData(BSPWorld.REGION, region);
+				world.attachChild(regionNode);
+			}
+
+			Mesh mesh = createMesh(batchIndices[i], batchVertexStarts[i], batchVertexCounts[i]);
+			Geometry geometry = new Geometry(bsp.textureNames[texture] + "#" + page, mesh);
+			geometry.setMaterial(materials[material]);
+			regionNode.attachChild(geometry);
+			progress.update(Phase.MESH, 0.5f + 0.5f * (i + 1) / numBatches);
+		}
+		progress.done(Phase.MESH);
+		progress.done(Phase.TEXTURES);
+
+		logger.info(vertices.size() + " vertices in " + numBatches + " geometries, " + regionNodes.length + " regions");
+		return world;
+	}
+
+	/**
+	 * Splits the faces into regions and buckets, writes their vertices into
+	 * the store and triangulates every bucket.
+	 */
+	private void layout() {
+		int firstFace = bsp.modelFirstFaces[0];
+		int numFaces = bsp.modelNumFaces[0];
+		int numTextures = bsp.getNumTextures();
+		int numPages = atlas == null ? 1 : atlas.getNumPages();
+
+		// split the tree into regions
+		int[] faceRegions = new int[numFaces];
+		List<Integer> regions = new ArrayList<Integer>();
+		int headNode = bsp.modelHeadNodes[0];
+		int[] subtreeFaces = new int[bsp.getNumNodes()];
+		countFaces(headNode, subtreeFaces);
+		partition(headNode, subtreeFaces, regions, faceRegions);
+		int numRegions = regions.size();
+		regionNodes = new int[numRegions];
+		for (int i = 0; i < numRegions; i++) {
+			regionNodes[i] = regions.get(i);
+		}
+
+		int numBuckets = numRegions * numTextures * numPages;
+
+		boolean[] invisible = new boolean[numTextures];
+		for (int i = 0; i < numTextures; i++) {
+			for (String name : INVISIBLE) {
+				if (name.equalsIgnoreCase(bsp.textureNames[i]))
+					invisible[i] = true;
+			}
+		}
+
+		// count the faces and vertices of every bucket
+		int[] faceBuckets = new int[numFaces];
+		int[] bucketFaces = new int[numBuckets + 1];
+		int[] bucketVertices = new int[numBuckets + 1];
+		for (int i = 0; i < numFaces; i++) {
+			int face = firstFace + i;
+			int texture = bsp.texInfoTextures[bsp.faceTexInfos[face]];
+			if (invisible[texture]) {
+				faceBuckets[i] = -1;
+				continue;
+			}
+			int page = atlas == null ? 0 : atlas.getFacePage(face);
+			int bucket = (faceRegions[i] * numTextures + texture) * numPages + page;
+			faceBuckets[i] = bucket;
+			bucketFaces[bucket + 1]++;
+			bucketVertices[bucket + 1] += bsp.faceNumEdges[face];
+		}
+		int numBatches = 0;
+		for (int i = 0; i < numBuckets; i++) {
+			if (bucketFaces[i + 1] > 0)
+				numBatches++;
+			bucketFaces[i + 1] += bucketFaces[i];
+			bucketVertices[i + 1] += bucketVertices[i];
+		}
+
+		// sort the faces by bucket
+		int[] order = new int[bucketFaces[numBuckets]];
+		int[] next = new int[numBuckets];
+		System.arraycopy(bucketFaces, 0, next, 0, numBuckets);
+		for (int i = 0; i < numFaces; i++) {
+			if (faceBuckets[i] >= 0)
+				order[next[faceBuckets[i]]++] = firstFace + i;
+		}
+
+		vertices = new BSPVertexStore(bucketVertices[numBuckets]);
+		int v = 0;
+		for (int i = 0; i < order.length; i++) {
+			v = writeFace(order[i], v);
+		}
+		vertices.swizzle();
+
+		batchRegions = new int[numBatches];
+		batchTextures = new int[numBatches];
+		batchPages = new int[numBatches];
+		batchVertexStarts = new int[numBatches];
+		batchVertexCounts = new int[numBatches];
+		batchIndices = new Buffer[numBatches];
+		int batch = 0;
+		for (int bucket = 0; bucket < numBuckets; bucket++) {
+			int faceStart = bucketFaces[bucket];
+			int faceEnd = bucketFaces[bucket + 1];
+			if (faceStart == faceEnd)
+				continue;
+			int material = bucket % (numTextures * numPages);
+			batchRegions[batch] = bucket / (numTextures * numPages);
+			batchTextures[batch] = material / numPages;
+			batchPages[batch] = material % numPages;
+			batchVertexStarts[batch] = bucketVertices[bucket];
+			batchVertexCounts[batch] = bucketVertices[bucket + 1] - bucketVertices[bucket];
+			batchIndices[batch] = triangulate(order, faceStart, faceEnd, batchVertexCounts[batch]);
+			batch++;
+		}
+		logger.info(order.length + " faces in " + numBatches + " batches");
+	}
+
+	private int countFaces(int node, int[] subtreeFaces) {
+		int count = bsp.nodeNumFaces[node];
+		for (int side = 0; side < 2; side++) {
+			int child = bsp.nodeChildren[node * 2 + side];
+			if (child >= 0)
+				count += countFaces(child, subtreeFaces);
+		}
+		subtreeFaces[node] = count;
+		return count;
+	}
+
+	private void partition(int node, int[] subtreeFaces, List<Integer> regions, int[] faceRegions) {
+		if (subtreeFaces[node] <= maxRegionFaces) {
+			regions.add(node);
+			assign(node, regions.size() - 1, true, faceRegions);
+			return;
+		}
+		if (bsp.nodeNumFaces[node] > 0) {
+			regions.add(node);
+			assign(node, regions.size() - 1, false, faceRegions);
+		}
+		for (int side = 0; side < 2; side++) {
+			int child = bsp.nodeChildren[node * 2 + side];
+			if (child >= 0)
+				partition(child, subtreeFaces, regions, faceRegions);
+		}
+	}
+
+	/**
+	 * Puts the faces of a node, and of its subtree if asked, into a region.
+	 */
+	private void assign(int node, int region, boolean subtree, int[] faceRegions) {
+		int firstFace = bsp.modelFirstFaces[0];
+		for (int i = 0; i < bsp.nodeNumFaces[node]; i++) {
+			int face = bsp.nodeFirstFaces[node] + i - firstFace;
+			if (face >= 0 && face < faceRegions.length)
+				faceRegions[face] = region;
+		}
+		if (subtree) {
+			for (int side = 0; side < 2; side++) {
+				int child = bsp.nodeChildren[node * 2 + side];
+				if (child >= 0)
+					assign(child, region, true, faceRegions);
+			}
+		}
+	}
+
+	/**
+	 * Writes the vertices of a face starting at vertex v and returns the
+	 * next free vertex.
+	 */
+	private int writeFace(int face, int v) {
+		int plane = bsp.facePlanes[face];
+		float sign = bsp.faceSides[face] == 0 ? 1f : -1f;
+		float nx = bsp.planeNormals[plane * 3] * sign;
+		float ny = bsp.planeNormals[plane * 3 + 1] * sign;
+		float nz = bsp.planeNormals[plane * 3 + 2] * sign;
+
+		int texInfo = bsp.faceTexInfos[face];
+		float[] vecs = bsp.texInfoVecs;
+		int t = texInfo * 8;
+		int texture = bsp.texInfoTextures[texInfo];
+		float width = Math.max(bsp.textureWidths[texture], 1);
+		float height = Math.max(bsp.textureHeights[texture], 1);
+
+		int numEdges = bsp.faceNumEdges[face];
+		for (int i = 0; i < numEdges; i++, v++) {
+			int vertex = bsp.getFaceVertex(face, i) * 3;
+			float x = bsp.vertices[vertex];
+			float y = bsp.vertices[vertex + 1];
+			float z = bsp.vertices[vertex + 2];
+
+			float s = x * vecs[t] + y * vecs[t + 1] + z * vecs[t + 2] + vecs[t + 3];
+			float tt = x * vecs[t + 4] + y * vecs[t + 5] + z * vecs[t + 6] + vecs[t + 7];
+
+			vertices.setPosition(v, x, y, z);
+			vertices.setNormal(v, nx, ny, nz);
+			vertices.setTexCoord(v, s / width, tt / height);
+			if (atlas != null)
+				atlas.setLightTexCoord(vertices, v, face, s, tt);
+		}
+		return v;
+	}
+
+	/**
+	 * Returns the indices of the fans of the faces [faceStart, faceEnd) of
+	 * the order, 16 bit if the vertices allow it.
+	 */
+	private Buffer triangulate(int[] order, int faceStart, int faceEnd, int numVertices) {
+		int numIndices = 0;
+		for (int i = faceStart; i < faceEnd; i++) {
+			numIndices += (bsp.faceNumEdges[order[i]] - 2) * 3;
+		}
+
+		// the faces are wound clockwise, jME expects counter clockwise
+		if (numVertices <= 65536) {
+			ShortBuffer indices = BufferUtils.createShortBuffer(numIndices);
+			int base = 0;
+			for (int i = faceStart; i < faceEnd; i++) {
+				int n = bsp.faceNumEdges[order[i]];
+				for (int j = 1; j < n - 1; j++) {
+					indices.put((short) base).put((short) (base + j + 1)).put((short) (base + j));
+				}
+				base += n;
+			}
+			indices.flip();
+			return indices;
+		} else {
+			IntBuffer indices = BufferUtils.createIntBuffer(numIndices);
+			int base = 0;
+			for (int i = faceStart; i < faceEnd; i++) {
+				int n = bsp.faceNumEdges[order[i]];
+				for (int j = 1; j < n - 1; j++) {
+					indices.put(base).put(base + j + 1).put(base + j);
+				}
+				base += n;
+			}
+			indices.flip();
+			return indices;
+		}
+	}
+
+	private Mesh createMesh(Buffer indices, int vertexStart, int numVertices) {
+		Mesh mesh = new Mesh();
+		if (indices instanceof ShortBuffer)
+			mesh.setBuffer(Type.Index, 3, (ShortBuffer) indices);
+		else
+			mesh.setBuffer(Type.Index, 3, (IntBuffer) indices);
+		mesh.setBuffer(vertices.getVertexBuffer(Type.Position, vertexStart, numVertices));
+		mesh.setBuffer(vertices.getVertexBuffer(Type.Normal, vertexStart, numVertices));
+		mesh.setBuffer(vertices.getVertexBuffer(Type.TexCoord, vertexStart, numVertices));
+		if (atlas != null)
+			mesh.setBuffer(vertices.getVertexBuffer(Type.TexCoord2, vertexStart, numVertices));
+		mesh.updateBound();
+		mesh.setStatic();
+		return mesh;
+	}
+
+	/**
+	 * Returns the material of a texture on a lightmap page.
+	 */
+	private Material applyLightmap(Material textureMaterial, int page) {
+		if (atlas == null)
+			return textureMaterial;
+		Material material = textureMaterial.clone();
+		material.setTexture("LightMap", atlas.getTexture(page));
+		material.setBoolean("SeparateTexCoord", true);
+		return material;
+	}
+
+	/**
+	 * Creates the material of a texture. Textures which are in none of the
+	 * WADs get a flat color derived from their name.
+	 */
+	protected Material createMaterial(AssetManager assetManager, int texture) {
+		Material material = new Material(assetManager, "Common/MatDefs/Misc/Unshaded.j3md");
+		Texture2D colorMap = colorMaps[texture];
+		if (colorMap != null) {
+			material.setTexture("ColorMap", colorMap);
+			// masked textures, index 255 is transparent
+			if (bsp.textureNames[texture].startsWith("{"))
+				material.setFloat("AlphaDiscardThreshold", 0.5f);
+			return material;
+		}
+
+		int hash = bsp.textureNames[texture].toLowerCase().hashCode();
+		material.setColor("Color", new ColorRGBA(
+				0.4f + 0.6f * ((hash >> 16) & 0xff) / 255f,
+				0.4f + 0.6f * ((hash >> 8) & 0xff) / 255f,
+				0.4f + 0.6f * (hash & 0xff) / 255f, 1f));
+		return material;
+	}
+
+	/**
+	 * Finds and decodes the used textures, in parallel if there is an
+	 * executor.
+	 */
+	private Texture2D[] resolveTextures(boolean[] used) throws InterruptedIOException {
+		final Texture2D[] result = new Texture2D[used.length];
+		List<Future<Void>> tasks = new ArrayList<Future<Void>>();
+		int count = 0;
+		for (int i = 0; i < used.length; i++) {
+			if (used[i])
+				count++;
+		}
+		final int numUsed = count;
+		for (int i = 0; i < used.length; i++) {
+			if (!used[i])
+				continue;
+			if (executor == null) {
+				result[i] = findTexture(i);
+				progress.step(Phase.TEXTURES, numUsed);
+				continue;
+			}
+			final int texture = i;
+			tasks.add(executor.submit(new Callable<Void>() {
+				@Override
+				public Void call() {
+					result[texture] = findTexture(texture);
+					progress.step(Phase.TEXTURES, numUsed);
+					return null;
+				}
+			}));
+		}
+		// every task is waited for even when interrupted, they read the
+		// texture lump which goes back to the pool after the load
+		boolean interrupted = false;
+		for (Future<Void> task : tasks) {
+			while (true) {
+				try {
+					task.get();
+					break;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				} catch (ExecutionException e) {
+					logger.warn("Cannot resolve a texture", e.getCause());
+					break;
+				}
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("BSP loading interrupted");
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the texture from the texture lump if the map carries its
+	 * pixels, otherwise from the first WAD which has it.
+	 */
+	private Texture2D findTexture(int index) {
+		String name = bsp.textureNames[index];
+		if (bsp.hasPixels(index)) {
+			if (textureLump == null)
+				return null;
+			try {
+				int offset = bsp.textureOffsets[index];
+				Image image = MipTex.decode(textureLump, offset, textureLump.limit() - offset, name, PaletteExpander.getMode(name, false));
+				if (compressor != null)
+					image = compressor.compress(image, null);
+				Texture2D texture = new Texture2D(image);
+				texture.setName(name);
+				texture.setWrap(Texture.WrapMode.Repeat);
+				texture.setMinFilter(Texture.MinFilter.Trilinear);
+				return texture;
+			} catch (IOException e) {
+				logger.warn("Cannot decode embedded texture " + name, e);
+				return null;
+			}
+		}
+
+		for (WADFile wad : wads) {
+			try {
+				Texture2D texture = wad.getTexture(name, textures);
+				if (texture != null)
+					return texture;
+			} catch (IOException e) {
+				logger.warn("Cannot decode " + name + " from " + wad.getName(), e);
+			}
+		}
+		logger.warn("Cannot find texture " + name);
+		return null;
+	}
+}
@@ -0,0 +1,210 @@
+package com.jme3.scene.plugins.bsp;
+
+/**
+ * Traces points and boxes through the clip hulls of the world.
+ * <p/>
+ * A GoldSrc map carries four hulls: hull 0 is the node tree itself and is
+ * used for points, hulls 1 to 3 are the clip node trees of a standing
+ * player, a large monster and a crouching player. These trees are already
+ * expanded by the size of the box, so tracing a box through its hull is
+ * tracing its center point. The trace follows the engine: the segment is
+ * split at every plane it crosses and the first transition into solid
+ * space is the impact.
+ * <p/>
+ * Nothing is allocated per trace, the result goes to a caller supplied
+ * {@link TraceResult}. The engine has no mutable state and can be shared
+ * between threads. Points are in the z up space of the map, relative to
+ * the world model.
+ */
+public class BSPTrace {
+
+	public final static int HULL_POINT = 0;
+	public final static int HULL_HUMAN = 1;
+	public final static int HULL_LARGE = 2;
+	public final static int HULL_HEAD = 3;
+	public final static int MAX_HULLS = 4;
+
+	/** The boxes of the hulls, 3 per hull */
+	public final static float[] HULL_MINS = { 0, 0, 0, -16, -16, -36, -32, -32, -32, -16, -16, -18 };
+	public final static float[] HULL_MAXS = { 0, 0, 0, 16, 16, 36, 32, 32, 32, 16, 16, 18 };
+
+	// 1/32 epsilon to keep floating point happy
+	private final static float DIST_EPSILON = 0.03125f;
+
+	private final float[] planeNormals;
+	private final float[] planeDists;
+	private final int[] planeTypes;
+
+	// hull 0 is the node tree with the leafs turned into contents
+	private final int[] nodePlanes;
+	private final int[] nodeChildren;
+
+	private final int[] clipNodePlanes;
+	private final int[] clipNodeChildren;
+
+	private final int[] headNodes = new int[MAX_HULLS];
+
+	public BSPTrace(BSPFile bsp) {
+		planeNormals = bsp.planeNormals;
+		planeDists = bsp.planeDists;
+		planeTypes = bsp.planeTypes;
+
+		nodePlanes = bsp.nodePlanes;
+		nodeChildren = new int[bsp.nodeChildren.length];
+		for (int i = 0; i < nodeChildren.length; i++) {
+			int child = bsp.nodeChildren[i];
+			nodeChildren[i] = child >= 0 ? child : bsp.leafContents[-(child + 1)];
+		}
+
+		clipNodePlanes = bsp.clipNodePlanes;
+		clipNodeChildren = new int[bsp.clipNodeChildren.length];
+		for (int i = 0; i < clipNodeChildren.length; i++) {
+			clipNodeChildren[i] = bsp.clipNodeChildren[i];
+		}
+
+		for (int hull = 0; hull < MAX_HULLS; hull++) {
+			headNodes[hull] = bsp.modelHeadNodes[hull];
+		}
+	}
+
+	/**
+	 * Returns the contents of the leaf the point is in.
+	 */
+	public int pointContents(float x, float y, float z) {
+		return pointContents(HULL_POINT, x, y, z);
+	}
+
+	/**
+	 * Returns the contents of a point in a hull.
+	 */
+	public int pointContents(int hull, float x, float y, float z) {
+		return hullPointContents(hull, headNodes[hull], x, y, z);
+	}
+
+	private int hullPointContents(int hull, int num, float x, float y, float z) {
+		int[] planes = hull == HULL_POINT ? nodePlanes : clipNodePlanes;
+		int[] children = hull == HULL_POINT ? nodeChildren : clipNodeChildren;
+		while (num >= 0) {
+			int plane = planes[num];
+			float d = distance(plane, x, y, z);
+			num = children[num * 2 + (d < 0 ? 1 : 0)];
+		}
+		return num;
+	}
+
+	/**
+	 * Traces a point from start to end.
+	 */
+	public TraceResult traceLine(float sx, float sy, float sz, float ex, float ey, float ez, TraceResult trace) {
+		return traceHull(HULL_POINT, sx, sy, sz, ex, ey, ez, trace);
+	}
+
+	/**
+	 * Traces the box of a hull from start to end, the points are the center
+	 * of the box.
+	 */
+	public TraceResult traceHull(int hull, float sx, float sy, float sz, float ex, float ey, float ez, TraceResult trace) {
+		trace.reset(ex, ey, ez);
+		recursiveHullCheck(hull, headNodes[hull], 0f, 1f, sx, sy, sz, ex, ey, ez, trace);
+		if (trace.allSolid)
+			trace.startSolid = true;
+		if (trace.startSolid)
+			trace.fraction = 0f;
+		trace.contents = pointContents(hull, trace.endX, trace.endY, trace.endZ);
+		return trace;
+	}
+
+	/**
+	 * Returns false once the trace hit something.
+	 */
+	private boolean recursiveHullCheck(int hull, int num, float p1f, float p2f,
+			float p1x, float p1y, float p1z, float p2x, float p2y, float p2z, TraceResult trace) {
+		if (num < 0) {
+			// a leaf
+			if (num != BSPFile.CONTENTS_SOLID) {
+				trace.allSolid = false;
+				if (num == BSPFile.CONTENTS_EMPTY)
+					trace.inOpen = true;
+				else
+					trace.inWater = true;
+			} else {
+				trace.startSolid = true;
+			}
+			return true;
+		}
+
+		int[] planes = hull == HULL_POINT ? nodePlanes : clipNodePlanes;
+		int[] children = hull == HULL_POINT ? nodeChildren : clipNodeChildren;
+		int plane = planes[num];
+		float t1 = distance(plane, p1x, p1y, p1z);
+		float t2 = distance(plane, p2x, p2y, p2z);
+
+		if (t1 >= 0 && t2 >= 0)
+			return recursiveHullCheck(hull, children[num * 2], p1f, p2f, p1x, p1y, p1z, p2x, p2y, p2z, trace);
+		if (t1 < 0 && t2 < 0)
+			return recursiveHullCheck(hull, children[num * 2 + 1], p1f, p2f, p1x, p1y, p1z, p2x, p2y, p2z, trace);
+
+		// put the crosspoint DIST_EPSILON pixels on the near side
+		float frac = t1 < 0 ? (t1 + DIST_EPSILON) / (t1 - t2) : (t1 - DIST_EPSILON) / (t1 - t2);
+		if (frac < 0)
+			frac = 0;
+		if (frac > 1)
+			frac = 1;
+
+		float midf = p1f + (p2f - p1f) * frac;
+		float midx = p1x + frac * (p2x - p1x);
+		float midy = p1y + frac * (p2y - p1y);
+		float midz = p1z + frac * (p2z - p1z);
+		int side = t1 < 0 ? 1 : 0;
+
+		// move up to the node
+		if (!recursiveHullCheck(hull, children[num * 2 + side], p1f, midf, p1x, p1y, p1z, midx, midy, midz, trace))
+			return false;
+
+		// go past the node
+		if (hullPointContents(hull, children[num * 2 + (side ^ 1)], midx, midy, midz) != BSPFile.CONTENTS_SOLID)
+			return recursiveHullCheck(hull, children[num * 2 + (side ^ 1)], midf, p2f, midx, midy, midz, p2x, p2y, p2z, trace);
+
+		// never got out of the solid area
+		if (trace.allSolid)
+			return false;
+
+		// the other side of the node is solid, this is the impact point
+		float sign = side == 0 ? 1f : -1f;
+		trace.planeX = planeNormals[plane * 3] * sign;
+		trace.planeY = planeNormals[plane * 3 + 1] * sign;
+		trace.planeZ = planeNormals[plane * 3 + 2] * sign;
+		trace.planeDist = planeDists[plane] * sign;
+
+		// back up until the mid point is out of the solid
+		while (hullPointContents(hull, headNodes[hull], midx, midy, midz) == BSPFile.CONTENTS_SOLID) {
+			frac -= 0.1f;
+			if (frac < 0) {
+				break;
+			}
+			midf = p1f + (p2f - p1f) * frac;
+			midx = p1x + frac * (p2x - p1x);
+			midy = p1y + frac * (p2y - p1y);
+			midz = p1z + frac * (p2z - p1z);
+		}
+
+		trace.fraction = midf;
+		trace.endX = midx;
+		trace.endY = midy;
+		trace.endZ = midz;
+		return false;
+	}
+
+	private float distance(int plane, float x, float y, float z) {
+		switch (planeTypes[plane]) {
+		case BSPFile.PLANE_X:
+			return x - planeDists[plane];
+		case BSPFile.PLANE_Y:
+			return y - planeDists[plane];
+		case BSPFile.PLANE_Z:
+			return z - planeDists[plane];
+		default:
+			return planeNormals[plane * 3] * x + planeNormals[plane * 3 + 1] * y + planeNormals[plane * 3 + 2] * z - planeDists[plane];
+		}
+	}
+}
@@ -0,0 +1,142 @@
+package com.jme3.scene.plugins.bsp;
+
+import java.util.Arrays;
+
+/**
+ * The node tree of the world, compiled into parallel primitive arrays.
+ * <p/>
+ * The splitting plane of every node is copied next to the node, so walking
+ * the tree from the root to a leaf reads a few small arrays instead of
+ * following node and plane records. Children are encoded like in the file:
+ * a child &gt;= 0 is a node, a child &lt; 0 is the leaf -(child + 1).
+ * <p/>
+ * Points are in the z up space of the map.
+ */
+public class BSPTree {
+
+	private final int headNode;
+
+	private final float[] nx;
+	private final float[] ny;
+	private final float[] nz;
+	private final float[] dist;
+	private final byte[] type;
+	/** 2 per node, front and back */
+	private final int[] children;
+
+	private final int[] nodeParents;
+	private final int[] leafParents;
+
+	public BSPTree(BSPFile bsp) {
+		this(bsp, 0);
+	}
+
+	/**
+	 * Compiles the tree of a model, model 0 is the world.
+	 */
+	public BSPTree(BSPFile bsp, int model) {
+		int numNodes = bsp.getNumNodes();
+		headNode = bsp.modelHeadNodes[model * 4];
+		nx = new float[numNodes];
+		ny = new float[numNodes];
+		nz = new float[numNodes];
+		dist = new float[numNodes];
+		type = new byte[numNodes];
+		children = new int[numNodes * 2];
+
+		nodeParents = new int[numNodes];
+		leafParents = new int[bsp.getNumLeafs()];
+		Arrays.fill(nodeParents, -1);
+		Arrays.fill(leafParents, -1);
+
+		for (int node = 0; node < numNodes; node++) {
+			int plane = bsp.nodePlanes[node];
+			nx[node] = bsp.planeNormals[plane * 3];
+			ny[node] = bsp.planeNormals[plane * 3 + 1];
+			nz[node] = bsp.planeNormals[plane * 3 + 2];
+			dist[node] = bsp.planeDists[plane];
+			type[node] = (byte) bsp.planeTypes[plane];
+
+			for (int side = 0; side < 2; side++) {
+				int child = bsp.nodeChildren[node * 2 + side];
+				children[node * 2 + side] = child;
+				if (child >= 0)
+					nodeParents[child] = node;
+				else
+					leafParents[-(child + 1)] = node;
+			}
+		}
+	}
+
+	public int getHeadNode() {
+		return headNode;
+	}
+
+	public int getNumNodes() {
+		return dist.length;
+	}
+
+	/**
+	 * Returns the child of a node, side 0 is the front.
+	 */
+	public int getChild(int node, int side) {
+		return children[node * 2 + side];
+	}
+
+	/**
+	 * Returns the parent node of a node, -1 for a root.
+	 */
+	public int getNodeParent(int node) {
+		return nodeParents[node];
+	}
+
+	/**
+	 * Returns the parent node of a leaf, -1 if no node references it.
+	 */
+	public int getLeafParent(int leaf) {
+		return leafParents[leaf];
+	}
+
+	/**
+	 * Returns the leaf containing the point.
+	 */
+	public int findLeaf(float x, float y, float z) {
+		return findLeaf(headNode, x, y, z);
+	}
+
+	/**
+	 * Returns the leaf containing the point, starting at the given node.
+	 */
+	public int findLeaf(int node, float x, float y, float z) {
+		while (node >= 0) {
+			float d;
+			// axial planes only need one component
+			switch (type[node]) {
+			case BSPFile.PLANE_X:
+				d = x - dist[node];
+				break;
+			case BSPFile.PLANE_Y:
+				d = y - dist[node];
+				break;
+			case BSPFile.PLANE_Z:
+				d = z - dist[node];
+				break;
+			default:
+				d = nx[node] * x + ny[node] * y + nz[node] * z - dist[node];
+			}
+			// points on the plane go to the back, like Mod_PointInLeaf
+			node = children[node * 2 + (d > 0 ? 0 : 1)];
+		}
+		return -(node + 1);
+	}
+
+	/**
+	 * Finds the leafs of count points. The points are stored as x y z in
+	 * xyz, the leaf of point i is written to leafs[i].
+	 */
+	public void findLeaves(float[] xyz, int[] leafs, int count) {
+		for (int i = 0, p = 0; i < count; i++, p += 3) {
+			leafs[i] = findLeaf(headNode, xyz[p], xyz[p + 1], xyz[p + 2]);
+		}
+	}
+}
@@ -0,0 +1,254 @@
+package com.jme3.scene.plugins.bsp;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+
+import com.jme3.math.ColorRGBA;
+import com.jme3.math.Vector2f;
+import com.jme3.math.Vector3f;
+import com.jme3.scene.VertexBuffer;
+import com.jme3.scene.VertexBuffer.Format;
+import com.jme3.scene.VertexBuffer.Type;
+import com.jme3.scene.VertexBuffer.Usage;
+import com.jme3.util.BufferUtils;
+
+/**
+ * Vertex storage as a structure of arrays. Every attribute lives in its own
+ * direct buffer, so a map with many thousand vertices is five allocations
+ * instead of six objects per vertex, and the buffers can be given to jME
+ * {@link VertexBuffer}s as they are.
+ * <p/>
+ * Single vertices are read and written through a {@link Cursor}, which is
+ * only a moving index into the store.
+ */
+public class BSPVertexStore {
+
+	private final int size;
+
+	private final FloatBuffer positions;
+	private final FloatBuffer normals;
+	private final FloatBuffer texCoords;
+	private final FloatBuffer lightTexCoords;
+	private final ByteBuffer colors;
+
+	public BSPVertexStore(int size) {
+		this.size = size;
+		positions = BufferUtils.createFloatBuffer(size * 3);
+		normals = BufferUtils.createFloatBuffer(size * 3);
+		texCoords = BufferUtils.createFloatBuffer(size * 2);
+		lightTexCoords = BufferUtils.createFloatBuffer(size * 2);
+		colors = BufferUtils.createByteBuffer(size * 4);
+	}
+
+	/**
+	 * Wraps buffers holding size vertices, e.g. views of a cooked map. The
+	 * buffers must be direct and in native order.
+	 */
+	BSPVertexStore(int size, FloatBuffer positions, FloatBuffer normals, FloatBuffer texCoords,
+			FloatBuffer lightTexCoords, ByteBuffer colors) {
+		this.size = size;
+		this.positions = positions;
+		this.normals = normals;
+		this.texCoords = texCoords;
+		this.lightTexCoords = lightTexCoords;
+		this.colors = colors;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public FloatBuffer getPositions() {
+		return positions;
+	}
+
+	public FloatBuffer getNormals() {
+		return normals;
+	}
+
+	public FloatBuffer getTexCoords() {
+		return texCoords;
+	}
+
+	public FloatBuffer getLightTexCoords() {
+		return lightTexCoords;
+	}
+
+	/**
+	 * Four unsigned bytes per vertex, r g b a.
+	 */
+	public ByteBuffer getColors() {
+		return colors;
+	}
+
+	public void setPosition(int i, float x, float y, float z) {
+		positions.put(i * 3, x).put(i * 3 + 1, y).put(i * 3 + 2, z);
+	}
+
+	public void setNormal(int i, float x, float y, float z) {
+		normals.put(i * 3, x).put(i * 3 + 1, y).put(i * 3 + 2, z);
+	}
+
+	public void setTexCoord(int i, float u, float v) {
+		texCoords.put(i * 2, u).put(i * 2 + 1, v);
+	}
+
+	public void setLightTexCoord(int i, float u, float v) {
+		lightTexCoords.put(i * 2, u).put(i * 2 + 1, v);
+	}
+
+	public void setColor(int i, byte r, byte g, byte b, byte a) {
+		colors.put(i * 4, r).put(i * 4 + 1, g).put(i * 4 + 2, b).put(i * 4 + 3, a);
+	}
+
+	/**
+	 * Converts every position and normal from the z up space of the map to
+	 * the y up space of jME.
+	 */
+	public void swizzle() {
+		swizzle(positions);
+		swizzle(normals);
+	}
+
+	private void swizzle(FloatBuffer buffer) {
+		for (int i = 0; i < size * 3; i += 3) {
+			float y = buffer.get(i + 1);
+			buffer.put(i + 1, buffer.get(i + 2));
+			buffer.put(i + 2, -y);
+		}
+	}
+
+	/**
+	 * Returns a vertex buffer for the whole store. The data is not copied.
+	 */
+	public VertexBuffer getVertexBuffer(Type type) {
+		return getVertexBuffer(type, 0, size);
+	}
+
+	/**
+	 * Returns a vertex buffer for the vertices [start, start + count). The
+	 * data is a slice of the store and is not copied.
+	 */
+	public VertexBuffer getVertexBuffer(Type type, int start, int count) {
+		VertexBuffer vb = new VertexBuffer(type);
+		switch (type) {
+		case Position:
+			vb.setupData(Usage.Static, 3, Format.Float, slice(positions, start * 3, count * 3));
+			break;
+		case Normal:
+			vb.setupData(Usage.Static, 3, Format.Float, slice(normals, start * 3, count * 3));
+			break;
+		case TexCoord:
+			vb.setupData(Usage.Static, 2, Format.Float, slice(texCoords, start * 2, count * 2));
+			break;
+		case TexCoord2:
+			vb.setupData(Usage.Static, 2, Format.Float, slice(lightTexCoords, start * 2, count * 2));
+			break;
+		case Color:
+			vb.setupData(Usage.Static, 4, Format.UnsignedByte, slice(colors, start * 4, count * 4));
+			vb.setNormalized(true);
+			break;
+		default:
+			throw new IllegalArgumentException("No " + type + " data in a BSP vertex store");
+		}
+		return vb;
+	}
+
+	private static FloatBuffer slice(FloatBuffer buffer, int offset, int length) {
+		FloatBuffer view = buffer.duplicate();
+		view.clear();
+		view.position(offset);
+		view.limit(offset + length);
+		return view.slice();
+	}
+
+	private static ByteBuffer slice(ByteBuffer buffer, int offset, int length) {
+		ByteBuffer view = buffer.duplicate();
+		view.clear();
+		view.position(offset);
+		view.limit(offset + length);
+		return view.slice();
+	}
+
+	public Cursor cursor() {
+		return new Cursor();
+	}
+
+	/**
+	 * A flyweight over one vertex of the store. Moving it to another vertex
+	 * does not allocate anything.
+	 */
+	public class Cursor {
+
+		private int index;
+
+		public Cursor moveTo(int index) {
+			this.index = index;
+			return this;
+		}
+
+		public int getIndex() {
+			return index;
+		}
+
+		public float getX() {
+			return positions.get(index * 3);
+		}
+
+		public float getY() {
+			return positions.get(index * 3 + 1);
+		}
+
+		public float getZ() {
+			return positions.get(index * 3 + 2);
+		}
+
+		public Vector3f getPosition(Vector3f store) {
+			return store.set(getX(), getY(), getZ());
+		}
+
+		public Vector3f getNormal(Vector3f store) {
+			return store.set(normals.get(index * 3), normals.get(index * 3 + 1), normals.get(index * 3 + 2));
+		}
+
+		public Vector2f getTexCoord(Vector2f store) {
+			return store.set(texCoords.get(index * 2), texCoords.get(index * 2 + 1));
+		}
+
+		public Vector2f getLightTexCoord(Vector2f store) {
+			return store.set(lightTexCoords.get(index * 2), lightTexCoords.get(index * 2 + 1));
+		}
+
+		public ColorRGBA getColor(ColorRGBA store) {
+			return store.set((colors.get(index * 4) & 0xff) / 255f,
+					(colors.get(index * 4 + 1) & 0xff) / 255f,
+					(colors.get(index * 4 + 2) & 0xff) / 255f,
+					(colors.get(index * 4 + 3) & 0xff) / 255f);
+		}
+
+		public Cursor setPosition(float x, float y, float z) {
+			BSPVertexStore.this.setPosition(index, x, y, z);
+			return this;
+		}
+
+		public Cursor setNormal(float x, float y, float z) {
+			BSPVertexStore.this.setNormal(index, x, y, z);
+			return this;
+		}
+
+		public Cursor setTexCoord(float u, float v) {
+			BSPVertexStore.this.setTexCoord(index, u, v);
+			return this;
+		}
+
+		public Cursor setLightTexCoord(float u, float v) {
+			BSPVertexStore.this.setLightTexCoord(index, u, v);
+			return this;
+		}
+
+		public Cursor setColor(byte r, byte g, byte b, byte a) {
+			BSPVertexStore.this.setColor(index, r, g, b, a);
+			return this;
+		}
+	}
+}
@@ -0,0 +1,227 @@
+package com.jme3.scene.plugins.bsp;
+
+import java.util.Arrays;
+
+/**
+ * The potentially visible set of the world.
+ * <p/>
+ * Every leaf has a run length compressed row in the visibility lump, bit j
+ * of the row tells whether leaf j + 1 can be seen from it (leaf 0 is the
+ * solid leaf outside the map and is never visible). Rows are decompressed
+ * on demand into long bitsets and kept in a least recently used cache of a
+ * fixed number of rows. The cache is made of arrays indexed by leaf, so a
+ * query that hits the cache allocates nothing, and the row evicted by a
+ * miss is reused for the new one.
+ * <p/>
+ * Small maps can decompress every row up front with
+ * {@link #decompressAll()}, after which nothing is ever evicted.
+ */
+public class BSPVisibility {
+
+	private final BSPFile bsp;
+	private final int numVisLeafs;
+	private final int rowLongs;
+
+	private int capacity;
+	private int size;
+
+	// cached rows by leaf, and the lru order as a doubly linked list of leafs
+	private final long[][] rows;
+	private final int[] prev;
+	private final int[] next;
+	private int head = -1;
+	private int tail = -1;
+
+	private long hits;
+	private long misses;
+
+	public BSPVisibility(BSPFile bsp) {
+		this(bsp, 256);
+	}
+
+	/**
+	 * @param cacheSize the maximum number of decompressed rows kept.
+	 */
+	public BSPVisibility(BSPFile bsp, int cacheSize) {
+		if (cacheSize < 1)
+			throw new IllegalArgumentException("cacheSize must be positive: " + cacheSize);
+		this.bsp = bsp;
+		this.numVisLeafs = bsp.modelVisLeafs[0];
+		this.rowLongs = (numVisLeafs + 63) >> 6;
+
+		int numLeafs = bsp.getNumLeafs();
+		this.capacity = Math.min(cacheSize, numLeafs);
+		this.rows = new long[numLeafs][];
+		this.prev = new int[numLeafs];
+		this.next = new int[numLeafs];
+	}
+
+	/**
+	 * Returns the number of leafs covered by the rows, leaf 1 to numVisLeafs.
+	 */
+	public int getNumVisLeafs() {
+		return numVisLeafs;
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * Decompresses every row and keeps all of them.
+	 */
+	public synchronized void decompressAll() {
+		capacity = rows.length;
+		for (int leaf = 0; leaf < rows.length; leaf++) {
+			row(leaf);
+		}
+	}
+
+	/**
+	 * Returns true if leaf b is potentially visible from leaf a.
+	 */
+	public synchronized boolean isVisible(int a, int b) {
+		if (b < 1 || b > numVisLeafs || a < 1 || a > numVisLeafs)
+			return false;
+		int bit = b - 1;
+		return (row(a)[bit >> 6] & (1L << bit)) != 0;
+	}
+
+	/**
+	 * Returns the first leaf at or after from which is potentially visible
+	 * from leaf, or -1 if there are none. Walking all visible leafs does not
+	 * allocate:
+	 *
+	 * <pre>
+	 * for (int other = vis.nextVisible(leaf, 1); other &gt;= 0; other = vis.nextVisible(leaf, other + 1))
+	 * </pre>
+	 */
+	public synchronized int nextVisible(int leaf, int from) {
+		if (leaf < 1 || leaf > numVisLeafs)
+			return -1;
+		int bit = Math.max(from, 1) - 1;
+		if (bit >= numVisLeafs)
+			return -1;
+
+		long[] row = row(leaf);
+		int i = bit >> 6;
+		long word = row[i] & (-1L << bit);
+		while (true) {
+			if (word != 0) {
+				int found = (i << 6) + Long.numberOfTrailingZeros(word);
+				return found < numVisLeafs ? found + 1 : -1;
+			}
+			if (++i == rowLongs)
+				return -1;
+			word = row[i];
+		}
+	}
+
+	/**
+	 * Copies the decompressed row of a leaf into store, which must hold at
+	 * least (getNumVisLeafs() + 63) / 64 longs.
+	 */
+	public synchronized long[] getRow(int leaf, long[] store) {
+		System.arraycopy(row(leaf), 0, store, 0, rowLongs);
+		return store;
+	}
+
+	/**
+	 * Returns the cached row of a leaf, decompressing it on a miss. The
+	 * returned array belongs to the cache.
+	 */
+	private long[] row(int leaf) {
+		long[] row = rows[leaf];
+		if (row != null) {
+			hits++;
+			if (head != leaf) {
+				unlink(leaf);
+				linkFirst(leaf);
+			}
+			return row;
+		}
+
+		misses++;
+		if (size == capacity) {
+			int eldest = tail;
+			unlink(eldest);
+			row = rows[eldest];
+			rows[eldest] = null;
+			size--;
+		} else {
+			row = new long[rowLongs];
+		}
+		decompress(leaf, row);
+		rows[leaf] = row;
+		linkFirst(leaf);
+		size++;
+		return row;
+	}
+
+	private void unlink(int leaf) {
+		int p = prev[leaf];
+		int n = next[leaf];
+		if (p >= 0)
+			next[p] = n;
+		else
+			head = n;
+		if (n >= 0)
+			prev[n] = p;
+		else
+			tail = p;
+	}
+
+	private void linkFirst(int leaf) {
+		prev[leaf] = -1;
+		next[leaf] = head;
+		if (head >= 0)
+			prev[head] = leaf;
+		head = leaf;
+		if (tail < 0)
+			tail = leaf;
+	}
+
+	/**
+	 * Decompresses the row of a leaf. A zero byte is followed by the number
+	 * of zero bytes it stands for, every other byte is literal. Leafs
+	 * without a row see everything.
+	 */
+	private void decompress(int leaf, long[] row) {
+		int offset = bsp.leafVisOffsets[leaf];
+		if (offset < 0 || leaf == 0) {
+			Arrays.fill(row, leaf == 0 ? 0L : -1L);
+			clearTail(row);
+			return;
+		}
+
+		Arrays.fill(row, 0L);
+		byte[] vis = bsp.visibility;
+		int rowBytes = (numVisLeafs + 7) >> 3;
+		int out = 0;
+		while (out < rowBytes && offset < vis.length) {
+			int b = vis[offset++] & 0xff;
+			if (b != 0) {
+				row[out >> 3] |= (long) b << ((out & 7) << 3);
+				out++;
+			} else if (offset < vis.length) {
+				out += vis[offset++] & 0xff;
+			} else {
+				break;
+			}
+		}
+		clearTail(row);
+	}
+
+	/**
+	 * Clears the bits past the last leaf.
+	 */
+	private void clearTail(long[] row) {
+		int bits = numVisLeafs & 63;
+		if (bits != 0)
+			row[rowLongs - 1] &= (1L << bits) - 1;
+	}
+}
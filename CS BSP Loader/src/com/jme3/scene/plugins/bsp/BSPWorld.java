@@ -0,0 +1,91 @@
+package com.jme3.scene.plugins.bsp;
+
+import com.jme3.scene.Node;
+import com.jme3.texture.plugins.wad.WADTextureCache;
+
+/**
+ * The root of a loaded map.
+ * <p/>
+ * The faces of the world are split into regions, every region is the set
+ * of faces stored in one node of the BSP tree (and optionally all nodes
+ * below it). Each region is a child {@link Node} of the world holding the
+ * batched geometries of its faces, and carries its index as the user data
+ * {@link #REGION}. A region can be seen if any leaf below its tree node can
+ * be seen, see {@link BSPCullingState}.
+ * <p/>
+ * The map data is shared between clones. Once the map is not used any
+ * more {@link #release()} hands its textures back to the shared
+ * {@link WADTextureCache}.
+ */
+public class BSPWorld extends Node {
+
+	/**
+	 * User data key of the region index of a region node.
+	 */
+	public final static String REGION = "BSPRegion";
+
+	private BSPFile bsp;
+	private BSPTree tree;
+	private BSPVisibility visibility;
+
+	// tree node of every region
+	private int[] regionNodes;
+
+	private WADTextureCache.Lease textureLease;
+
+	/**
+	 * For serialization only.
+	 */
+	public BSPWorld() {
+	}
+
+	public BSPWorld(String name, BSPFile bsp, int[] regionNodes) {
+		super(name);
+		this.bsp = bsp;
+		this.regionNodes = regionNodes;
+		this.tree = new BSPTree(bsp);
+	}
+
+	public BSPFile getBSPFile() {
+		return bsp;
+	}
+
+	public BSPTree getTree() {
+		return tree;
+	}
+
+	/**
+	 * Returns the potentially visible set of the map, created on first use.
+	 */
+	public synchronized BSPVisibility getVisibility() {
+		if (visibility == null) {
+			visibility = new BSPVisibility(bsp);
+		}
+		return visibility;
+	}
+
+	public int getNumRegions() {
+		return regionNodes.length;
+	}
+
+	/**
+	 * Returns the tree node the region belongs to.
+	 */
+	public int getRegionNode(int region) {
+		return regionNodes[region];
+	}
+
+	public void setTextureLease(WADTextureCache.Lease textureLease) {
+		this.textureLease = textureLease;
+	}
+
+	/**
+	 * Gives the textures of the map back to the shared cache, so the next
+	 * map can reuse them or the cache can drop them. This is for the map as
+	 * a whole, clones share the textures.
+	 */
+	public void release() {
+		if (textureLease != null)
+			textureLease.release();
+	}
+}
@@ -0,0 +1,420 @@
+package com.jme3.scene.plugins.bsp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.apache.log4j.Logger;
+
+import trb.jme.imaging.DirectBufferedImage;
+
+import com.jme3.texture.Image;
+import com.jme3.texture.Texture;
+import com.jme3.texture.Texture2D;
+import com.jme3.texture.image.ColorSpace;
+import com.jme3.texture.plugins.dxt.DXTCompressor;
+
+/**
+ * Packs the per face lightmaps of the lighting lump into a few large pages.
+ * <p/>
+ * The size of a face lightmap follows from the extents of the face in
+ * texture space, one sample every 16 texels. The blocks are sorted by
+ * height and placed with a skyline packer, with a border of replicated
+ * samples around each block so bilinear filtering never bleeds into the
+ * neighbours. Once every block has its place the pages are filled in
+ * parallel, one task per page.
+ * <p/>
+ * Faces without light samples share one white block.
+ */
+public class LightmapAtlas {
+
+	static Logger logger = Logger.getLogger(LightmapAtlas.class);
+
+	private final static int LUXEL_SIZE = 16;
+
+	private final BSPFile bsp;
+	private final int pageSize;
+	private final int padding;
+
+	// per face placement, in texels of the page
+	private int[] facePages;
+	private int[] faceX;
+	private int[] faceY;
+	private int[] faceWidths;
+	private int[] faceHeights;
+	private int[] faceMinS;
+	private int[] faceMinT;
+	private boolean[] faceLit;
+	private int whiteX;
+	private int whiteY;
+
+	private int[] pageHeights;
+	private DirectBufferedImage[] pages;
+	private Texture2D[] textures;
+
+	private ExecutorService executor;
+	private DXTCompressor compressor;
+
+	public LightmapAtlas(BSPFile bsp) {
+		this(bsp, 512, 1);
+	}
+
+	public LightmapAtlas(BSPFile bsp, int pageSize, int padding) {
+		this.bsp = bsp;
+		this.pageSize = pageSize;
+		this.padding = padding;
+	}
+
+	/**
+	 * Creates an atlas from the page textures of a previous build, e.g. a
+	 * cooked map. Only {@link #getNumPages()} and
+	 * {@link #getTexture(int)} may be used.
+	 */
+	LightmapAtlas(BSPFile bsp, Texture2D[] textures) {
+		this(bsp, 512, 1);
+		this.textures = textures;
+	}
+
+	/**
+	 * Sets the compressor of the pages, null keeps them uncompressed.
+	 */
+	public void setCompressor(DXTCompressor compressor) {
+		this.compressor = compressor;
+	}
+
+	public int getNumPages() {
+		return textures.length;
+	}
+
+	public int getFacePage(int face) {
+		return facePages[face];
+	}
+
+	public DirectBufferedImage getPage(int page) {
+		return pages[page];
+	}
+
+	/**
+	 * Computes the lightmap block of every face, packs them and fills the
+	 * pages on the executor.
+	 */
+	public void build(ExecutorService executor) throws IOException {
+		this.executor = executor;
+		int numFaces = bsp.getNumFaces();
+		facePages = new int[numFaces];
+		faceX = new int[numFaces];
+		faceY = new int[numFaces];
+		faceWidths = new int[numFaces];
+		faceHeights = new int[numFaces];
+		faceMinS = new int[numFaces];
+		faceMinT = new int[numFaces];
+		faceLit = new boolean[numFaces];
+
+		List<Integer> blocks = new ArrayList<Integer>(numFaces);
+		for (int face = 0; face < numFaces; face++) {
+			if (computeExtents(face))
+				blocks.add(face);
+		}
+		Integer[] order = blocks.toArray(new Integer[blocks.size()]);
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				int d = faceHeights[b] - faceHeights[a];
+				return d != 0 ? d : faceWidths[b] - faceWidths[a];
+			}
+		});
+
+		// the shared white block goes first
+		List<Skyline> skylines = new ArrayList<Skyline>();
+		skylines.add(new Skyline(pageSize));
+		int[] position = new int[2];
+		skylines.get(0).insert(1 + padding * 2, 1 + padding * 2, position);
+		whiteX = position[0] + padding;
+		whiteY = position[1] + padding;
+
+		for (int face : order) {
+			int w = faceWidths[face] + padding * 2;
+			int h = faceHeights[face] + padding * 2;
+			if (w > pageSize || h > pageSize)
+				throw new IOException("Lightmap of face " + face + " is larger than a page: " + faceWidths[face] + "x" + faceHeights[face]);
+
+			int page = skylines.size() - 1;
+			if (!skylines.get(page).insert(w, h, position)) {
+				// try the older pages before opening a new one
+				for (page = 0; page < skylines.size(); page++) {
+					if (skylines.get(page).insert(w, h, position))
+						break;
+				}
+				if (page == skylines.size()) {
+					skylines.add(new Skyline(pageSize));
+					skylines.get(page).insert(w, h, position);
+				}
+			}
+			facePages[face] = page;
+			faceX[face] = position[0] + padding;
+			faceY[face] = position[1] + padding;
+		}
+
+		for (int face = 0; face < numFaces; face++) {
+			if (!faceLit[face]) {
+				facePages[face] = 0;
+				faceX[face] = whiteX;
+				faceY[face] = whiteY;
+				faceWidths[face] = 1;
+				faceHeights[face] = 1;
+			}
+		}
+
+		pageHeights = new int[skylines.size()];
+		for (int i = 0; i < pageHeights.length; i++) {
+			pageHeights[i] = Integer.highestOneBit(Math.max(skylines.get(i).getHeight() - 1, 1)) << 1;
+		}
+		pages = new DirectBufferedImage[skylines.size()];
+		textures = new Texture2D[skylines.size()];
+
+		// 每一页并行填充
+		List<Future<Void>> tasks = new ArrayList<Future<Void>>();
+		for (int i = 0; i < pages.length; i++) {
+			final int page = i;
+			tasks.add(executor.submit(new Callable<Void>() {
+				@Override
+				public Void call() {
+					fillPage(page);
+					return null;
+				}
+			}));
+		}
+		for (Future<Void> task : tasks) {
+			try {
+				task.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while filling the lightmaps", e);
+			} catch (ExecutionException e) {
+				throw new IOException("Cannot fill the lightmaps", e.getCause());
+			}
+		}
+
+		logger.info(blocks.size() + " lightmaps packed into " + pages.length + " pages of " + pageSize + " texels");
+	}
+
+	/**
+	 * Computes the lightmap size of a face like the engine does. Returns
+	 * false if the face has no light samples.
+	 */
+	private boolean computeExtents(int face) {
+		int texInfo = bsp.faceTexInfos[face];
+		if (bsp.faceLightOffsets[face] < 0 || (bsp.texInfoFlags[texInfo] & BSPFile.TEX_SPECIAL) != 0)
+			return false;
+
+		double minS = Double.MAX_VALUE, minT = Double.MAX_VALUE;
+		double maxS = -Double.MAX_VALUE, maxT = -Double.MAX_VALUE;
+		float[] vecs = bsp.texInfoVecs;
+		int t = texInfo * 8;
+		for (int i = 0; i < bsp.faceNumEdges[face]; i++) {
+			int v = bsp.getFaceVertex(face, i) * 3;
+			double x = bsp.vertices[v], y = bsp.vertices[v + 1], z = bsp.vertices[v + 2];
+			double s = x * vecs[t] + y * vecs[t + 1] + z * vecs[t + 2] + vecs[t + 3];
+			double tt = x * vecs[t + 4] + y * vecs[t + 5] + z * vecs[t + 6] + vecs[t + 7];
+			minS = Math.min(minS, s);
+			maxS = Math.max(maxS, s);
+			minT = Math.min(minT, tt);
+			maxT = Math.max(maxT, tt);
+		}
+
+		faceMinS[face] = (int) Math.floor(minS / LUXEL_SIZE);
+		faceMinT[face] = (int) Math.floor(minT / LUXEL_SIZE);
+		faceWidths[face] = (int) Math.ceil(maxS / LUXEL_SIZE) - faceMinS[face] + 1;
+		faceHeights[face] = (int) Math.ceil(maxT / LUXEL_SIZE) - faceMinT[face] + 1;
+
+		int size = faceWidths[face] * faceHeights[face] * 3;
+		if (bsp.faceLightOffsets[face] > bsp.lighting.length - size) {
+			logger.warn("Face " + face + " has a truncated lightmap");
+			return false;
+		}
+		faceLit[face] = true;
+		return true;
+	}
+
+	private void fillPage(int page) {
+		DirectBufferedImage image = DirectBufferedImage.getDirectImageRGB(pageSize, pageHeights[page]);
+		ByteBuffer data = image.getBuffer();
+		int stride = pageSize * 3;
+
+		for (int face = 0; face < facePages.length; face++) {
+			if (facePages[face] != page || !faceLit[face])
+				continue;
+			int w = faceWidths[face];
+			int h = faceHeights[face];
+			int src = bsp.faceLightOffsets[face];
+			for (int y = 0; y < h; y++) {
+				data.position((faceY[face] + y) * stride + faceX[face] * 3);
+				data.put(bsp.lighting, src + y * w * 3, w * 3);
+			}
+			pad(data, stride, faceX[face], faceY[face], w, h);
+		}
+
+		if (page == 0) {
+			// the block of the faces without light
+			int offset = whiteY * stride + whiteX * 3;
+			for (int i = 0; i < 3; i++) {
+				data.put(offset + i, (byte) 0xff);
+			}
+			pad(data, stride, whiteX, whiteY, 1, 1);
+		}
+		pages[page] = image;
+	}
+
+	/**
+	 * Replicates the border samples of a block into its padding.
+	 */
+	private void pad(ByteBuffer data, int stride, int x, int y, int w, int h) {
+		for (int p = 1; p <= padding; p++) {
+			for (int row = y; row < y + h; row++) {
+				copy(data, row * stride + x * 3, row * stride + (x - p) * 3, 3);
+				copy(data, row * stride + (x + w - 1) * 3, row * stride + (x + w - 1 + p) * 3, 3);
+			}
+		}
+		int rowLength = (w + padding * 2) * 3;
+		int left = (x - padding) * 3;
+		for (int p = 1; p <= padding; p++) {
+			copy(data, y * stride + left, (y - p) * stride + left, rowLength);
+			copy(data, (y + h - 1) * stride + left, (y + h - 1 + p) * stride + left, rowLength);
+		}
+	}
+
+	/**
+	 * Copies bytes within the page, the ranges never overlap.
+	 */
+	private static void copy(ByteBuffer data, int from, int to, int length) {
+		ByteBuffer src = data.duplicate();
+		src.limit(from + length).position(from);
+		data.position(to);
+		data.put(src);
+	}
+
+	/**
+	 * Writes the lightmap coordinate of a vertex of the face, s and t are
+	 * the texture space coordinates of the vertex.
+	 */
+	public void setLightTexCoord(BSPVertexStore store, int v, int face, float s, float t) {
+		float u = faceX[face] + 0.5f;
+		float w = faceY[face] + 0.5f;
+		if (faceLit[face]) {
+			u += s / LUXEL_SIZE - faceMinS[face];
+			w += t / LUXEL_SIZE - faceMinT[face];
+		}
+		int page = facePages[face];
+		store.setLightTexCoord(v, u / pageSize, w / pageHeights[page]);
+	}
+
+	/**
+	 * Returns the texture of a page, created on first use. The pages are
+	 * compressed in parallel on the build executor if there is a compressor.
+	 */
+	public synchronized Texture2D getTexture(int page) {
+		if (textures[page] == null) {
+			// the texture shares the pixels of the page, gamma encoded like
+			// the textures
+			Image pixels = pages[page].toImage(ColorSpace.sRGB);
+			if (compressor != null) {
+				try {
+					pixels = compressor.compress(pixels, executor);
+				} catch (IOException e) {
+					logger.warn("Cannot compress lightmap page " + page, e);
+				}
+			}
+			Texture2D texture = new Texture2D(pixels);
+			texture.setMinFilter(Texture.MinFilter.BilinearNoMipMaps);
+			texture.setMagFilter(Texture.MagFilter.Bilinear);
+			texture.setWrap(Texture.WrapMode.EdgeClamp);
+			textures[page] = texture;
+		}
+		return textures[page];
+	}
+
+	/**
+	 * Bottom left skyline packer for one page.
+	 */
+	private static class Skyline {
+		private final int size;
+		// segments of the skyline, sorted by x
+		private final List<int[]> segments = new ArrayList<int[]>();
+		private int height;
+
+		Skyline(int size) {
+			this.size = size;
+			segments.add(new int[] { 0, 0, size });
+		}
+
+		int getHeight() {
+			return height;
+		}
+
+		/**
+		 * Finds the lowest place for a w x h block. Returns false if the
+		 * page is full.
+		 */
+		boolean insert(int w, int h, int[] position) {
+			int best = -1;
+			int bestX = 0, bestY = Integer.MAX_VALUE;
+			for (int i = 0; i < segments.size(); i++) {
+				int x = segments.get(i)[0];
+				if (x + w > size)
+					break;
+				int y = 0;
+				int covered = 0;
+				for (int j = i; covered < w; j++) {
+					int[] segment = segments.get(j);
+					y = Math.max(y, segment[1]);
+					covered += segment[2];
+				}
+				if (y + h <= size && y < bestY) {
+					best = i;
+					bestX = x;
+					bestY = y;
+				}
+			}
+			if (best < 0)
+				return false;
+
+			// replace the covered part of the skyline with the block top
+			int i = best;
+			int end = bestX + w;
+			while (i < segments.size() && segments.get(i)[0] < end) {
+				int[] segment = segments.get(i);
+				int segmentEnd = segment[0] + segment[2];
+				if (segmentEnd > end) {
+					segment[2] = segmentEnd - end;
+					segment[0] = end;
+					break;
+				}
+				segments.remove(i);
+			}
+			segments.add(best, new int[] { bestX, bestY + h, w });
+
+			// merge neighbours of the same height
+			for (int j = 0; j < segments.size() - 1; j++) {
+				int[] a = segments.get(j);
+				int[] b = segments.get(j + 1);
+				if (a[1] == b[1]) {
+					a[2] += b[2];
+					segments.remove(j + 1);
+					j--;
+				}
+			}
+
+			position[0] = bestX;
+			position[1] = bestY;
+			height = Math.max(height, bestY + h);
+			return true;
+		}
+	}
+}
@@ -0,0 +1,53 @@
+package com.jme3.scene.plugins.bsp;
+
+/**
+ * The outcome of a {@link BSPTrace}. Results are meant to be reused, every
+ * trace resets the one it is given.
+ * <p/>
+ * Points and planes are in the z up space of the map.
+ */
+public class TraceResult {
+
+	/** The trace never left solid space */
+	public boolean allSolid;
+	/** The trace started in solid space */
+	public boolean startSolid;
+	/** The trace crossed empty space */
+	public boolean inOpen;
+	/** The trace crossed water, slime or lava */
+	public boolean inWater;
+
+	/** How far the trace got, 1 if nothing was hit */
+	public float fraction;
+
+	public float endX;
+	public float endY;
+	public float endZ;
+
+	/** The plane which was hit, facing the start point */
+	public float planeX;
+	public float planeY;
+	public float planeZ;
+	public float planeDist;
+
+	/** The contents at the end point */
+	public int contents;
+
+	public void reset(float x, float y, float z) {
+		allSolid = true;
+		startSolid = false;
+		inOpen = false;
+		inWater = false;
+		fraction = 1f;
+		endX = x;
+		endY = y;
+		endZ = z;
+		planeX = planeY = planeZ = planeDist = 0f;
+		contents = BSPFile.CONTENTS_EMPTY;
+	}
+
+	@Override
+	public String toString() {
+		return "TraceResult[fraction=" + fraction + ", end=(" + endX + ", " + endY + ", " + endZ + "), plane=(" + planeX + ", " + planeY + ", " + planeZ + ", " + planeDist + "), contents=" + contents + (startSolid ? ", startSolid" : "") + (allSolid ? ", allSolid" : "") + "]";
+	}
+}
@@ -1,74 +0,0 @@
-/**
- * Copyright (c) 2003, Xith3D Project Group
- * All rights reserved.
- *
- * Portions based on the Java3D interface, Copyright by Sun Microsystems.
- * Many thanks to the developers of Java3D and Sun Microsystems for their
- * innovation and design.
- *
- * Redistribution and use in source and binary forms, with or without
- * modification, are permitted provided that the following conditions are met:
- *
- * Redistributions of source code must retain the above copyright notice,
- * this list of conditions and the following disclaimer.
- *
- * Redistributions in binary form must reproduce the above copyright notice,
- * this list of conditions and the following disclaimer in the documentation
- * and/or other materials provided with the distribution.
- *
- * Redistribution and use in source and binary forms, with or without
- * modification, are permitted provided that the following conditions are met:
- *
- * Redistributions of source code must retain the above copyright notice,
- * this list of conditions and the following disclaimer.
- *
- * Redistributions in binary form must reproduce the above copyright notice,
- * this list of conditions and the following disclaimer in the documentation
- * and/or other materials provided with the distribution.
- *
- * Neither the name of the 'Xith3D Project Group' nor the names of its contributors
- * may be used to endorse or promote products derived from this software
- * without specific prior written permission.
- *
- * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
- * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
- * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
- * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
- * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
- * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
- * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
- * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
- * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) A
- * RISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
- * POSSIBILITY OF SUCH DAMAGE
- *
- */
-
-package com.jme3.scene.plugins.bsp.lumps;
-
-/**
- * The leafs, like the faces, are a very important part of the BSP information.
- * They store the  visibility cluster, the area portal, the leaf bounding box, the
- * index into the faces, the number of leaf faces, the index into the brushes for
- * collision, and finally,  the number of leaf brushes.  To calculate the number of
- * leafs in the lump you divide the  length of the lump by the sizeof(tBSPLeaf).
- * <p/>
- * Originally Coded by David Yazel on Jan 4, 2004 at 4:07:49 PM.
- */
-public class tBSPLeaf {
-
-    public int cluster;           // The visibility cluster
-    public int area;              // The area portal
-    public int mins[];           // The bounding box min position
-    public int maxs[];           // The bounding box max position
-    public int leafface;          // The first index into the face array
-    public int numOfLeafFaces;    // The number of faces for this leaf
-    public int leafBrush;         // The first index for into the brushes
-    public int numOfLeafBrushes;  // The number of brushes for this leaf
-
-    public tBSPLeaf() {
-        mins = new int[3];
-        maxs = new int[3];
-    }
-
-}
@@ -1,8 +0,0 @@
-package com.jme3.scene.plugins.bsp.lumps;
-
-import com.jme3.math.Vector3f;
-
-public class tBSPPlane {
-    public Vector3f normal = new Vector3f();
-    public float d;
-}
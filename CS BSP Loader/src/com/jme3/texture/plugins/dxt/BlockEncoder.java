@@ -0,0 +1,265 @@
+package com.jme3.texture.plugins.dxt;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes single 4x4 blocks. The texels are given as 16 r g b a ints.
+ * An encoder keeps scratch arrays and must not be shared between threads.
+ */
+class BlockEncoder {
+
+	// index of the same color once the endpoints are swapped
+	private final static int[] SWAP = { 1, 0, 3, 2 };
+	// weight of c0 for every index in four color mode
+	private final static float[] WEIGHTS = { 1f, 0f, 2f / 3f, 1f / 3f };
+
+	private final int[] palette = new int[4 * 4];
+	private final int[] alphas = new int[8];
+
+	// results of fit and refine
+	private int lastError;
+	private int refined0;
+	private int refined1;
+
+	/**
+	 * Writes the 8 byte color block.
+	 */
+	void encodeColor(int[] block, ByteBuffer out, int offset) {
+		// mean and covariance of the colors
+		float mr = 0, mg = 0, mb = 0;
+		for (int i = 0; i < 16; i++) {
+			mr += block[i * 4];
+			mg += block[i * 4 + 1];
+			mb += block[i * 4 + 2];
+		}
+		mr /= 16;
+		mg /= 16;
+		mb /= 16;
+		float rr = 0, rg = 0, rb = 0, gg = 0, gb = 0, bb = 0;
+		for (int i = 0; i < 16; i++) {
+			float r = block[i * 4] - mr;
+			float g = block[i * 4 + 1] - mg;
+			float b = block[i * 4 + 2] - mb;
+			rr += r * r;
+			rg += r * g;
+			rb += r * b;
+			gg += g * g;
+			gb += g * b;
+			bb += b * b;
+		}
+
+		// principal axis by power iteration
+		float ar = 1, ag = 1, ab = 1;
+		for (int i = 0; i < 4; i++) {
+			float r = rr * ar + rg * ag + rb * ab;
+			float g = rg * ar + gg * ag + gb * ab;
+			float b = rb * ar + gb * ag + bb * ab;
+			float length = Math.max(Math.abs(r), Math.max(Math.abs(g), Math.abs(b)));
+			if (length == 0)
+				break;
+			ar = r / length;
+			ag = g / length;
+			ab = b / length;
+		}
+
+		// the extremes along the axis are the endpoints
+		int min = 0, max = 0;
+		float minDot = Float.MAX_VALUE, maxDot = -Float.MAX_VALUE;
+		for (int i = 0; i < 16; i++) {
+			float dot = block[i * 4] * ar + block[i * 4 + 1] * ag + block[i * 4 + 2] * ab;
+			if (dot < minDot) {
+				minDot = dot;
+				min = i;
+			}
+			if (dot > maxDot) {
+				maxDot = dot;
+				max = i;
+			}
+		}
+
+		int c0 = to565(block[max * 4], block[max * 4 + 1], block[max * 4 + 2]);
+		int c1 = to565(block[min * 4], block[min * 4 + 1], block[min * 4 + 2]);
+		int indices = 0;
+		if (c0 != c1) {
+			indices = fit(block, c0, c1);
+			int error = lastError;
+			// refine the endpoints by least squares on the chosen indices
+			if (refine(block, indices)) {
+				int refined = fit(block, refined0, refined1);
+				if (lastError < error) {
+					c0 = refined0;
+					c1 = refined1;
+					indices = refined;
+				}
+			}
+			if (c0 == c1) {
+				indices = 0;
+			} else if (c0 < c1) {
+				// c0 > c1 selects the four color mode
+				int t = c0;
+				c0 = c1;
+				c1 = t;
+				indices = fit(block, c0, c1);
+			}
+		}
+
+		out.put(offset, (byte) c0);
+		out.put(offset + 1, (byte) (c0 >> 8));
+		out.put(offset + 2, (byte) c1);
+		out.put(offset + 3, (byte) (c1 >> 8));
+		out.put(offset + 4, (byte) indices);
+		out.put(offset + 5, (byte) (indices >> 8));
+		out.put(offset + 6, (byte) (indices >> 16));
+		out.put(offset + 7, (byte) (indices >> 24));
+	}
+
+	/**
+	 * Returns the indices of the texels for the endpoints in four color
+	 * mode, the squared error goes to lastError.
+	 */
+	private int fit(int[] block, int c0, int c1) {
+		colorPalette(Math.max(c0, c1), Math.min(c0, c1), palette);
+		boolean swapped = c0 < c1;
+		int indices = 0;
+		lastError = 0;
+		for (int i = 15; i >= 0; i--) {
+			int index = nearestColor(block, i);
+			if (swapped)
+				index = SWAP[index];
+			indices = indices << 2 | index;
+		}
+		return indices;
+	}
+
+	/**
+	 * Solves the endpoints which fit the texels best for the given indices.
+	 * Returns false if the system has no solution.
+	 */
+	private boolean refine(int[] block, int indices) {
+		float aa = 0, bb = 0, ab = 0;
+		float axr = 0, axg = 0, axb = 0, bxr = 0, bxg = 0, bxb = 0;
+		for (int i = 0; i < 16; i++) {
+			float wa = WEIGHTS[(indices >>> (i * 2)) & 3];
+			float wb = 1 - wa;
+			aa += wa * wa;
+			bb += wb * wb;
+			ab += wa * wb;
+			axr += wa * block[i * 4];
+			axg += wa * block[i * 4 + 1];
+			axb += wa * block[i * 4 + 2];
+			bxr += wb * block[i * 4];
+			bxg += wb * block[i * 4 + 1];
+			bxb += wb * block[i * 4 + 2];
+		}
+		float det = aa * bb - ab * ab;
+		if (Math.abs(det) < 1e-6f)
+			return false;
+		float f = 1 / det;
+		refined0 = to565(clamp((axr * bb - bxr * ab) * f), clamp((axg * bb - bxg * ab) * f), clamp((axb * bb - bxb * ab) * f));
+		refined1 = to565(clamp((bxr * aa - axr * ab) * f), clamp((bxg * aa - axg * ab) * f), clamp((bxb * aa - axb * ab) * f));
+		return refined0 != refined1;
+	}
+
+	private static int clamp(float value) {
+		return Math.max(0, Math.min(255, Math.round(value)));
+	}
+
+	private int nearestColor(int[] block, int texel) {
+		int best = 0;
+		int bestError = Integer.MAX_VALUE;
+		for (int i = 0; i < 4; i++) {
+			int dr = block[texel * 4] - palette[i * 4];
+			int dg = block[texel * 4 + 1] - palette[i * 4 + 1];
+			int db = block[texel * 4 + 2] - palette[i * 4 + 2];
+			int error = dr * dr + dg * dg + db * db;
+			if (error < bestError) {
+				bestError = error;
+				best = i;
+			}
+		}
+		lastError += bestError;
+		return best;
+	}
+
+	/**
+	 * Writes the 8 byte alpha block.
+	 */
+	void encodeAlpha(int[] block, ByteBuffer out, int offset) {
+		int a0 = 0, a1 = 255;
+		for (int i = 0; i < 16; i++) {
+			a0 = Math.max(a0, block[i * 4 + 3]);
+			a1 = Math.min(a1, block[i * 4 + 3]);
+		}
+
+		long indices = 0;
+		if (a0 != a1) {
+			alphaPalette(a0, a1, alphas);
+			for (int i = 15; i >= 0; i--) {
+				int a = block[i * 4 + 3];
+				int best = 0;
+				int bestError = Integer.MAX_VALUE;
+				for (int j = 0; j < 8; j++) {
+					int error = Math.abs(a - alphas[j]);
+					if (error < bestError) {
+						bestError = error;
+						best = j;
+					}
+				}
+				indices = indices << 3 | best;
+			}
+		}
+
+		out.put(offset, (byte) a0);
+		out.put(offset + 1, (byte) a1);
+		for (int i = 0; i < 6; i++) {
+			out.put(offset + 2 + i, (byte) (indices >>> (i * 8)));
+		}
+	}
+
+	private static int to565(int r, int g, int b) {
+		return ((r * 31 + 127) / 255) << 11 | ((g * 63 + 127) / 255) << 5 | (b * 31 + 127) / 255;
+	}
+
+	/**
+	 * Expands the endpoints of a color block into its four r g b a colors.
+	 */
+	static void colorPalette(int c0, int c1, int[] palette) {
+		int r0 = (c0 >> 11 & 31) * 255 / 31, g0 = (c0 >> 5 & 63) * 255 / 63, b0 = (c0 & 31) * 255 / 31;
+		int r1 = (c1 >> 11 & 31) * 255 / 31, g1 = (c1 >> 5 & 63) * 255 / 63, b1 = (c1 & 31) * 255 / 31;
+		set(palette, 0, r0, g0, b0, 255);
+		set(palette, 1, r1, g1, b1, 255);
+		if (c0 > c1) {
+			set(palette, 2, (2 * r0 + r1) / 3, (2 * g0 + g1) / 3, (2 * b0 + b1) / 3, 255);
+			set(palette, 3, (r0 + 2 * r1) / 3, (g0 + 2 * g1) / 3, (b0 + 2 * b1) / 3, 255);
+		} else {
+			set(palette, 2, (r0 + r1) / 2, (g0 + g1) / 2, (b0 + b1) / 2, 255);
+			set(palette, 3, 0, 0, 0, 0);
+		}
+	}
+
+	/**
+	 * Expands the endpoints of an alpha block into its eight values.
+	 */
+	static void alphaPalette(int a0, int a1, int[] alphas) {
+		alphas[0] = a0;
+		alphas[1] = a1;
+		if (a0 > a1) {
+			for (int i = 1; i < 7; i++) {
+				alphas[i + 1] = ((7 - i) * a0 + i * a1) / 7;
+			}
+		} else {
+			for (int i = 1; i < 5; i++) {
+				alphas[i + 1] = ((5 - i) * a0 + i * a1) / 5;
+			}
+			alphas[6] = 0;
+			alphas[7] = 255;
+		}
+	}
+
+	private static void set(int[] palette, int i, int r, int g, int b, int a) {
+		palette[i * 4] = r;
+		palette[i * 4 + 1] = g;
+		palette[i * 4 + 2] = b;
+		palette[i * 4 + 3] = a;
+	}
+}
@@ -0,0 +1,367 @@
+package com.jme3.texture.plugins.dxt;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.apache.log4j.Logger;
+
+import com.jme3.asset.AssetKey;
+import com.jme3.asset.AssetManager;
+import com.jme3.asset.DesktopAssetManager;
+import com.jme3.asset.plugins.ClasspathLocator;
+import com.jme3.texture.Image;
+import com.jme3.texture.Image.Format;
+import com.jme3.texture.image.ColorSpace;
+import com.jme3.texture.plugins.wad.WADFile;
+import com.jme3.texture.plugins.wad.WADLoader;
+import com.jme3.util.BufferUtils;
+
+/**
+ * Compresses RGB8 and RGBA8 images to DXT1 (BC1) or DXT5 (BC3) on the CPU.
+ * <p/>
+ * Images without transparent texels become DXT1, the others (the masked {
+ * textures and decals) DXT5. The endpoints of a color block lie on the
+ * principal axis of its colors, the alpha block uses the eight value mode
+ * between the smallest and biggest alpha. Every mip level of the source is
+ * compressed.
+ * <p/>
+ * With a cache directory the compressed images are stored on disk, named
+ * after a hash of the source pixels, and read back the next time the same
+ * pixels are compressed.
+ */
+public class DXTCompressor {
+
+	static Logger logger = Logger.getLogger(DXTCompressor.class);
+
+	public static void main(String[] args) throws IOException {
+		AssetManager assetManager = new DesktopAssetManager(true);
+		assetManager.registerLocator("/", ClasspathLocator.class);
+		assetManager.registerLoader(WADLoader.class, "wad");
+		WADFile wad = assetManager.loadAsset(new AssetKey<WADFile>(args.length > 0 ? args[0] : "cstrike/maps/cs_dust.wad"));
+
+		DXTCompressor compressor = new DXTCompressor(null);
+		double total = 0;
+		int count = 0;
+		for (int i = 0; i < wad.getNumEntries(); i++) {
+			if (!wad.isMipTex(i))
+				continue;
+			Image source = wad.decode(i);
+			long start = System.nanoTime();
+			Image compressed = compressor.compress(source, null);
+			long time = System.nanoTime() - start;
+			double psnr = psnr(source, decode(compressed));
+			System.out.printf("%-16s %4dx%-4d %s %6.2f dB %6.2f ms%n", wad.getEntryName(i), source.getWidth(), source.getHeight(),
+					compressed.getFormat(), psnr, time / 1e6);
+			total += psnr;
+			count++;
+		}
+		System.out.printf("%d textures, average %.2f dB%n", count, total / count);
+	}
+
+	private final static int CACHE_MAGIC = 0x43545844; // DXTC
+	private final static int CACHE_VERSION = 2;
+
+	// rows of blocks per task
+	private final static int ROWS_PER_TASK = 16;
+
+	private final File cacheDirectory;
+
+	/**
+	 * @param cacheDirectory where compressed images are kept, or null.
+	 */
+	public DXTCompressor(File cacheDirectory) {
+		this.cacheDirectory = cacheDirectory;
+		if (cacheDirectory != null)
+			cacheDirectory.mkdirs();
+	}
+
+	public File getCacheDirectory() {
+		return cacheDirectory;
+	}
+
+	/**
+	 * Compresses an RGB8 or RGBA8 image with all its mip levels. With an
+	 * executor the blocks of big levels are compressed in parallel. Images
+	 * of other formats are returned as they are.
+	 */
+	public Image compress(Image source, ExecutorService executor) throws IOException {
+		Format format = source.getFormat();
+		if (format != Format.RGB8 && format != Format.RGBA8)
+			return source;
+		int bpp = format == Format.RGB8 ? 3 : 4;
+
+		ByteBuffer data = source.getData(0);
+		int width = source.getWidth();
+		int height = source.getHeight();
+		int[] sourceSizes = source.getMipMapSizes();
+		if (sourceSizes == null)
+			sourceSizes = new int[] { width * height * bpp };
+
+		boolean alpha = bpp == 4 && hasAlpha(data);
+		Format target = alpha ? Format.DXT5 : Format.DXT1;
+		// an image made with the empty constructor has none
+		ColorSpace colorSpace = source.getColorSpace() != null ? source.getColorSpace() : ColorSpace.Linear;
+		long hash = hash(data, width, height, bpp, sourceSizes.length, colorSpace);
+
+		File file = cacheDirectory == null ? null : new File(cacheDirectory, Long.toHexString(hash) + ".dxt");
+		if (file != null && file.isFile()) {
+			Image cached = read(file, target, width, height, colorSpace);
+			if (cached != null)
+				return cached;
+		}
+
+		int blockSize = alpha ? 16 : 8;
+		int[] sizes = new int[sourceSizes.length];
+		int total = 0;
+		for (int level = 0; level < sizes.length; level++) {
+			int w = Math.max(width >> level, 1);
+			int h = Math.max(height >> level, 1);
+			sizes[level] = ((w + 3) / 4) * ((h + 3) / 4) * blockSize;
+			total += sizes[level];
+		}
+
+		ByteBuffer out = BufferUtils.createByteBuffer(total);
+		int sourceOffset = 0;
+		int outOffset = 0;
+		for (int level = 0; level < sizes.length; level++) {
+			int w = Math.max(width >> level, 1);
+			int h = Math.max(height >> level, 1);
+			compressLevel(data, sourceOffset, w, h, bpp, alpha, out, outOffset, executor);
+			sourceOffset += sourceSizes[level];
+			outOffset += sizes[level];
+		}
+
+		Image image = new Image(target, width, height, out, sizes, colorSpace);
+		if (file != null)
+			write(file, image);
+		return image;
+	}
+
+	private void compressLevel(final ByteBuffer data, final int offset, final int width, final int height, final int bpp,
+			final boolean alpha, final ByteBuffer out, final int outOffset, ExecutorService executor) throws IOException {
+		final int rows = (height + 3) / 4;
+		if (executor == null || rows <= ROWS_PER_TASK) {
+			compressRows(data, offset, width, height, bpp, alpha, out, outOffset, 0, rows);
+			return;
+		}
+
+		List<Future<Void>> tasks = new ArrayList<Future<Void>>();
+		for (int row = 0; row < rows; row += ROWS_PER_TASK) {
+			final int first = row;
+			tasks.add(executor.submit(new Callable<Void>() {
+				@Override
+				public Void call() {
+					compressRows(data, offset, width, height, bpp, alpha, out, outOffset, first, Math.min(first + ROWS_PER_TASK, rows));
+					return null;
+				}
+			}));
+		}
+		for (Future<Void> task : tasks) {
+			try {
+				task.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while compressing", e);
+			} catch (ExecutionException e) {
+				throw new IOException("Cannot compress", e.getCause());
+			}
+		}
+	}
+
+	private static void compressRows(ByteBuffer data, int offset, int width, int height, int bpp, boolean alpha,
+			ByteBuffer out, int outOffset, int firstRow, int endRow) {
+		int blocksPerRow = (width + 3) / 4;
+		int blockSize = alpha ? 16 : 8;
+		int[] block = new int[16 * 4];
+		BlockEncoder encoder = new BlockEncoder();
+		for (int by = firstRow; by < endRow; by++) {
+			for (int bx = 0; bx < blocksPerRow; bx++) {
+				// gather the texels, repeating the border of partial blocks
+				for (int y = 0; y < 4; y++) {
+					int sy = Math.min(by * 4 + y, height - 1);
+					for (int x = 0; x < 4; x++) {
+						int sx = Math.min(bx * 4 + x, width - 1);
+						int src = offset + (sy * width + sx) * bpp;
+						int dst = (y * 4 + x) * 4;
+						block[dst] = data.get(src) & 0xff;
+						block[dst + 1] = data.get(src + 1) & 0xff;
+						block[dst + 2] = data.get(src + 2) & 0xff;
+						block[dst + 3] = bpp == 4 ? data.get(src + 3) & 0xff : 255;
+					}
+				}
+				int dst = outOffset + (by * blocksPerRow + bx) * blockSize;
+				if (alpha) {
+					encoder.encodeAlpha(block, out, dst);
+					dst += 8;
+				}
+				encoder.encodeColor(block, out, dst);
+			}
+		}
+	}
+
+	private static boolean hasAlpha(ByteBuffer data) {
+		for (int i = 3; i < data.limit(); i += 4) {
+			if (data.get(i) != (byte) 0xff)
+				return true;
+		}
+		return false;
+	}
+
+	private static long hash(ByteBuffer data, int width, int height, int bpp, int levels, ColorSpace colorSpace) {
+		long hash = 0xcbf29ce484222325L;
+		hash = (hash ^ width) * 0x100000001b3L;
+		hash = (hash ^ height) * 0x100000001b3L;
+		hash = (hash ^ bpp) * 0x100000001b3L;
+		hash = (hash ^ levels) * 0x100000001b3L;
+		hash = (hash ^ colorSpace.ordinal()) * 0x100000001b3L;
+		hash = (hash ^ CACHE_VERSION) * 0x100000001b3L;
+		for (int i = 0; i < data.limit(); i++) {
+			hash = (hash ^ (data.get(i) & 0xff)) * 0x100000001b3L;
+		}
+		return hash;
+	}
+
+	private Image read(File file, Format format, int width, int height, ColorSpace colorSpace) {
+		try {
+			DataInputStream in = new DataInputStream(new FileInputStream(file));
+			try {
+				if (in.readInt() != CACHE_MAGIC || in.readInt() != CACHE_VERSION || in.readInt() != format.ordinal()
+						|| in.readInt() != width || in.readInt() != height || in.readInt() != colorSpace.ordinal())
+					return null;
+				int[] sizes = new int[in.readInt()];
+				int total = 0;
+				for (int i = 0; i < sizes.length; i++) {
+					sizes[i] = in.readInt();
+					total += sizes[i];
+				}
+				byte[] bytes = new byte[total];
+				in.readFully(bytes);
+				ByteBuffer data = BufferUtils.createByteBuffer(total);
+				data.put(bytes).flip();
+				return new Image(format, width, height, data, sizes, colorSpace);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			logger.warn("Cannot read " + file, e);
+			return null;
+		}
+	}
+
+	private void write(File file, Image image) {
+		int[] sizes = image.getMipMapSizes();
+		if (sizes == null)
+			sizes = new int[] { image.getData(0).limit() };
+		File temp = new File(file.getPath() + ".tmp" + Thread.currentThread().getId());
+		try {
+			DataOutputStream out = new DataOutputStream(new FileOutputStream(temp));
+			try {
+				out.writeInt(CACHE_MAGIC);
+				out.writeInt(CACHE_VERSION);
+				out.writeInt(image.getFormat().ordinal());
+				out.writeInt(image.getWidth());
+				out.writeInt(image.getHeight());
+				out.writeInt(image.getColorSpace().ordinal());
+				out.writeInt(sizes.length);
+				for (int size : sizes) {
+					out.writeInt(size);
+				}
+				ByteBuffer data = image.getData(0).duplicate();
+				data.clear();
+				byte[] bytes = new byte[data.remaining()];
+				data.get(bytes);
+				out.write(bytes);
+			} finally {
+				out.close();
+			}
+			if (!temp.renameTo(file)) {
+				file.delete();
+				if (!temp.renameTo(file))
+					temp.delete();
+			}
+		} catch (IOException e) {
+			logger.warn("Cannot write " + file, e);
+			temp.delete();
+		}
+	}
+
+	/**
+	 * Decodes a DXT1 or DXT5 image back to RGBA8, for checking the quality.
+	 * Only the first level is decoded.
+	 */
+	public static Image decode(Image image) {
+		int width = image.getWidth();
+		int height = image.getHeight();
+		boolean alpha = image.getFormat() == Format.DXT5;
+		int blockSize = alpha ? 16 : 8;
+		int blocksPerRow = (width + 3) / 4;
+		ByteBuffer in = image.getData(0);
+		ByteBuffer out = BufferUtils.createByteBuffer(width * height * 4);
+		int[] colors = new int[4 * 4];
+		int[] alphas = new int[8];
+		for (int by = 0; by < (height + 3) / 4; by++) {
+			for (int bx = 0; bx < blocksPerRow; bx++) {
+				int src = (by * blocksPerRow + bx) * blockSize;
+				long alphaBits = 0;
+				if (alpha) {
+					BlockEncoder.alphaPalette(in.get(src) & 0xff, in.get(src + 1) & 0xff, alphas);
+					for (int i = 7; i >= 2; i--) {
+						alphaBits = alphaBits << 8 | (in.get(src + i) & 0xff);
+					}
+					src += 8;
+				}
+				int c0 = (in.get(src) & 0xff) | (in.get(src + 1) & 0xff) << 8;
+				int c1 = (in.get(src + 2) & 0xff) | (in.get(src + 3) & 0xff) << 8;
+				BlockEncoder.colorPalette(c0, c1, colors);
+				int indices = (in.get(src + 4) & 0xff) | (in.get(src + 5) & 0xff) << 8 | (in.get(src + 6) & 0xff) << 16
+						| (in.get(src + 7) & 0xff) << 24;
+				for (int i = 0; i < 16; i++) {
+					int x = bx * 4 + (i & 3);
+					int y = by * 4 + (i >> 2);
+					if (x >= width || y >= height)
+						continue;
+					int index = (indices >>> (i * 2)) & 3;
+					int dst = (y * width + x) * 4;
+					out.put(dst, (byte) colors[index * 4]);
+					out.put(dst + 1, (byte) colors[index * 4 + 1]);
+					out.put(dst + 2, (byte) colors[index * 4 + 2]);
+					out.put(dst + 3, (byte) (alpha ? alphas[(int) (alphaBits >>> (i * 3)) & 7] : colors[index * 4 + 3]));
+				}
+			}
+		}
+		return new Image(Format.RGBA8, width, height, out, image.getColorSpace());
+	}
+
+	/**
+	 * Returns the peak signal to noise ratio of the first level of b against
+	 * a, both RGB8 or RGBA8. Alpha is only compared if both have it.
+	 */
+	public static double psnr(Image a, Image b) {
+		int bppA = a.getFormat() == Format.RGB8 ? 3 : 4;
+		int bppB = b.getFormat() == Format.RGB8 ? 3 : 4;
+		int channels = Math.min(bppA, bppB);
+		ByteBuffer da = a.getData(0);
+		ByteBuffer db = b.getData(0);
+		int pixels = a.getWidth() * a.getHeight();
+		double error = 0;
+		for (int i = 0; i < pixels; i++) {
+			for (int c = 0; c < channels; c++) {
+				int d = (da.get(i * bppA + c) & 0xff) - (db.get(i * bppB + c) & 0xff);
+				error += d * d;
+			}
+		}
+		double mse = error / (pixels * channels);
+		return mse == 0 ? Double.POSITIVE_INFINITY : 10 * Math.log10(255 * 255 / mse);
+	}
+}
@@ -0,0 +1,82 @@
+package com.jme3.texture.plugins.wad;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+
+import com.jme3.texture.Image;
+import com.jme3.texture.Image.Format;
+import com.jme3.texture.image.ColorSpace;
+import com.jme3.util.BufferUtils;
+
+/**
+ * Decodes a GoldSrc miptex, the texture record of WADs and of the texture
+ * lump of a BSP.
+ * <p/>
+ * A miptex is a 40 byte header (name, width, height and the offsets of
+ * four mip levels) followed by the four palettized levels and the palette
+ * of 256 RGB colors. The levels were filtered by the map tools and are
+ * what the engine draws, so they are used as they are instead of
+ * generating new ones: all four are expanded into one RGBA buffer and the
+ * image gets their sizes as mip map sizes.
+ * <p/>
+ * Decoding is thread safe, every thread has its own
+ * {@link PaletteExpander}.
+ */
+public class MipTex {
+
+	public final static int HEADER_SIZE = 40;
+	public final static int MIPLEVELS = 4;
+
+	private final static ThreadLocal<PaletteExpander> expanders = new ThreadLocal<PaletteExpander>() {
+		@Override
+		protected PaletteExpander initialValue() {
+			return new PaletteExpander();
+		}
+	};
+
+	/**
+	 * Decodes the miptex at base. The buffer must be little endian, it is
+	 * only read with absolute gets.
+	 *
+	 * @param mode one of the PaletteExpander modes.
+	 */
+	public static Image decode(ByteBuffer in, int base, int size, String name, int mode) throws IOException {
+		int end = base + size;
+		if (size < HEADER_SIZE)
+			throw new IOException("Miptex " + name + " is truncated");
+
+		int width = in.getInt(base + 16);
+		int height = in.getInt(base + 20);
+		if (width <= 0 || height <= 0 || (width & 15) != 0 || (height & 15) != 0)
+			throw new IOException("Miptex " + name + " has an invalid size " + width + "x" + height);
+
+		int[] levels = new int[MIPLEVELS];
+		int[] mipMapSizes = new int[MIPLEVELS];
+		int total = 0;
+		for (int i = 0; i < MIPLEVELS; i++) {
+			int pixels = (width >> i) * (height >> i);
+			levels[i] = base + in.getInt(base + 24 + i * 4);
+			if (levels[i] < base + HEADER_SIZE || levels[i] > end - pixels)
+				throw new IOException("Miptex " + name + " is truncated");
+			mipMapSizes[i] = pixels * 4;
+			total += pixels;
+		}
+
+		// the palette follows the last mip level
+		int palette = levels[MIPLEVELS - 1] + (width >> 3) * (height >> 3) + 2;
+		if (palette > end - 256 * 3)
+			throw new IOException("Miptex " + name + " has no palette");
+
+		PaletteExpander expander = expanders.get();
+		expander.setPalette(in, palette, mode);
+		ByteBuffer data = BufferUtils.createByteBuffer(total * 4);
+		IntBuffer out = data.duplicate().order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+		for (int i = 0; i < MIPLEVELS; i++) {
+			expander.expand(in, levels[i], (width >> i) * (height >> i), out);
+		}
+
+		return new Image(Format.RGBA8, width, height, data, mipMapSizes, ColorSpace.sRGB);
+	}
+}
@@ -0,0 +1,78 @@
+package com.jme3.texture.plugins.wad;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+
+/**
+ * Expands 8 bit palettized pixels to RGBA.
+ * <p/>
+ * The palette of a texture is turned into a table of 256 packed RGBA ints
+ * once, after that every pixel is a single table lookup, and the pixels
+ * are read and written a row at a time instead of one by one. The ints are
+ * packed so they are R G B A in memory when written to a little endian
+ * {@link IntBuffer}.
+ */
+public class PaletteExpander {
+
+	/** Every index is an opaque color */
+	public final static int MODE_NORMAL = 0;
+	/** Index 255 is transparent, the textures whose name starts with { */
+	public final static int MODE_TRANSPARENT = 1;
+	/** The color is entry 255, the index is the alpha, the textures of decal WADs */
+	public final static int MODE_DECAL = 2;
+
+	private final static int CHUNK = 4096;
+
+	private final int[] lut = new int[256];
+	private final byte[] indices = new byte[CHUNK];
+	private final int[] pixels = new int[CHUNK];
+
+	/**
+	 * Returns the mode of a texture from its name and its WAD.
+	 */
+	public static int getMode(String name, boolean decal) {
+		if (decal)
+			return MODE_DECAL;
+		return name.startsWith("{") ? MODE_TRANSPARENT : MODE_NORMAL;
+	}
+
+	/**
+	 * Builds the table from 256 RGB colors at the given offset.
+	 */
+	public void setPalette(ByteBuffer in, int offset, int mode) {
+		if (mode == MODE_DECAL) {
+			int rgb = rgb(in, offset + 255 * 3);
+			for (int i = 0; i < 256; i++) {
+				lut[i] = rgb | i << 24;
+			}
+			return;
+		}
+		for (int i = 0; i < 256; i++) {
+			lut[i] = rgb(in, offset + i * 3) | 0xff000000;
+		}
+		if (mode == MODE_TRANSPARENT)
+			lut[255] = 0;
+	}
+
+	private static int rgb(ByteBuffer in, int offset) {
+		return (in.get(offset) & 0xff) | (in.get(offset + 1) & 0xff) << 8 | (in.get(offset + 2) & 0xff) << 16;
+	}
+
+	/**
+	 * Expands count indices at offset into out, which must be a little
+	 * endian view.
+	 */
+	public void expand(ByteBuffer in, int offset, int count, IntBuffer out) {
+		ByteBuffer src = in.duplicate();
+		src.position(offset);
+		while (count > 0) {
+			int n = Math.min(count, CHUNK);
+			src.get(indices, 0, n);
+			for (int i = 0; i < n; i++) {
+				pixels[i] = lut[indices[i] & 0xff];
+			}
+			out.put(pixels, 0, n);
+			count -= n;
+		}
+	}
+}
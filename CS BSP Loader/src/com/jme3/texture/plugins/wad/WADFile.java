@@ -0,0 +1,187 @@
+package com.jme3.texture.plugins.wad;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import com.jme3.scene.plugins.bsp.BSPLoader;
+import com.jme3.texture.Image;
+import com.jme3.texture.Texture;
+import com.jme3.texture.Texture2D;
+
+/**
+ * A WAD3 texture archive.
+ * <p/>
+ * Only the header and the lump directory are read when the archive is
+ * opened, the miptex of a texture is only decoded when the texture is asked
+ * for. Names are case insensitive, like in the engine. Decoded textures are
+ * not kept here but in the {@link WADTextureCache}, which outlives the WAD.
+ */
+public class WADFile {
+
+	static Logger logger = Logger.getLogger(WADFile.class);
+
+	public final static int TYP_MIPTEX = 0x43;
+
+	private final static int HEADER_SIZE = 12;
+	private final static int ENTRY_SIZE = 32;
+
+	private final String name;
+	private final ByteBuffer buffer;
+
+	// lower case name -> directory entry
+	private final Map<String, Integer> directory;
+	private final String[] names;
+	private final int[] offsets;
+	private final int[] sizes;
+	private final byte[] types;
+
+	// content hash of every entry, 0 until computed
+	private final long[] hashes;
+
+	private boolean decal;
+
+	/**
+	 * Reads the directory of a WAD. The buffer is kept and must stay valid
+	 * as long as textures are decoded from it.
+	 */
+	public WADFile(String name, ByteBuffer buffer) throws IOException {
+		this.name = name;
+		this.buffer = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+
+		ByteBuffer in = this.buffer;
+		if (in.limit() < HEADER_SIZE || in.get(0) != 'W' || in.get(1) != 'A' || in.get(2) != 'D' || in.get(3) != '3')
+			throw new IOException("Invalid WAD3 file " + name);
+		int numEntries = in.getInt(4);
+		int directoryOffset = in.getInt(8);
+		if (numEntries < 0 || directoryOffset < HEADER_SIZE || directoryOffset > in.limit() - (long) numEntries * ENTRY_SIZE)
+			throw new IOException("Invalid directory in WAD3 file " + name);
+
+		directory = new HashMap<String, Integer>(numEntries * 2);
+		names = new String[numEntries];
+		offsets = new int[numEntries];
+		sizes = new int[numEntries];
+		types = new byte[numEntries];
+		hashes = new long[numEntries];
+		byte[] nameBytes = new byte[16];
+		for (int i = 0; i < numEntries; i++) {
+			int entry = directoryOffset + i * ENTRY_SIZE;
+			offsets[i] = in.getInt(entry);
+			sizes[i] = in.getInt(entry + 4);
+			types[i] = in.get(entry + 12);
+			ByteBuffer view = in.duplicate();
+			view.position(entry + 16);
+			view.get(nameBytes);
+			names[i] = BSPLoader.getString(nameBytes);
+
+			if (offsets[i] < 0 || offsets[i] > in.limit() - sizes[i] || sizes[i] < 0)
+				throw new IOException("Entry " + names[i] + " is out of the WAD3 file " + name);
+			directory.put(names[i].toLowerCase(), i);
+		}
+		decal = name.toLowerCase().endsWith("decals.wad");
+		logger.info(name + " has " + numEntries + " entries");
+	}
+
+	/**
+	 * Returns true if the textures are decals: one color from the last
+	 * palette entry and the pixels are the alpha. The engine does this for
+	 * decals.wad.
+	 */
+	public boolean isDecal() {
+		return decal;
+	}
+
+	public void setDecal(boolean decal) {
+		this.decal = decal;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public int getNumEntries() {
+		return names.length;
+	}
+
+	public String getEntryName(int entry) {
+		return names[entry];
+	}
+
+	/**
+	 * Returns the directory entry of a name, or -1.
+	 */
+	public int find(String name) {
+		Integer entry = directory.get(name.toLowerCase());
+		return entry == null ? -1 : entry;
+	}
+
+	public boolean contains(String name) {
+		return find(name) >= 0;
+	}
+
+	public boolean isMipTex(int entry) {
+		return types[entry] == TYP_MIPTEX;
+	}
+
+	/**
+	 * Returns a 64 bit FNV-1a hash of the raw lump of an entry, so the same
+	 * texture in two copies of a WAD is recognized as the same.
+	 */
+	public long getContentHash(int entry) {
+		synchronized (hashes) {
+			if (hashes[entry] != 0)
+				return hashes[entry];
+		}
+		long hash = 0xcbf29ce484222325L;
+		int end = offsets[entry] + sizes[entry];
+		for (int i = offsets[entry]; i < end; i++) {
+			hash ^= buffer.get(i) & 0xff;
+			hash *= 0x100000001b3L;
+		}
+		if (hash == 0)
+			hash = 1;
+		synchronized (hashes) {
+			hashes[entry] = hash;
+		}
+		return hash;
+	}
+
+	/**
+	 * Returns the texture of a name through the shared
+	 * {@link WADTextureCache}, or null if the WAD does not have a miptex of
+	 * that name. The texture is held until the lease is released.
+	 */
+	public Texture2D getTexture(String name, WADTextureCache.Lease lease) throws IOException {
+		int entry = find(name);
+		if (entry < 0 || !isMipTex(entry))
+			return null;
+		return lease.getTexture(this, entry);
+	}
+
+	/**
+	 * Decodes the texture of an entry, nothing is cached.
+	 */
+	public Texture2D createTexture(int entry) throws IOException {
+		Texture2D texture = new Texture2D(decode(entry));
+		texture.setName(names[entry]);
+		texture.setWrap(Texture.WrapMode.Repeat);
+		texture.setMinFilter(Texture.MinFilter.Trilinear);
+		return texture;
+	}
+
+	/**
+	 * Decodes the miptex of an entry with its mip levels.
+	 */
+	public Image decode(int entry) throws IOException {
+		return MipTex.decode(buffer, offsets[entry], sizes[entry], names[entry], PaletteExpander.getMode(names[entry], decal));
+	}
+
+	@Override
+	public String toString() {
+		return "WADFile[" + name + ", " + names.length + " entries]";
+	}
+}
@@ -1,16 +1,25 @@
 package com.jme3.texture.plugins.wad;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import com.jme3.asset.AssetInfo;
 import com.jme3.asset.AssetLoader;
+import com.jme3.scene.plugins.bsp.AssetBuffers;
 
+/**
+ * Loads a WAD3 texture archive as a {@link WADFile}.
+ * <p/>
+ * The file is mapped, not copied, and kept for the life of the
+ * {@link WADFile}; textures are only decoded when they are asked for.
+ */
 public class WADLoader implements AssetLoader {
 
 	@Override
 	public Object load(AssetInfo assetInfo) throws IOException {
-		// TODO Auto-generated method stub
-		return null;
+		// the buffer belongs to the WADFile from now on, it is never released
+		ByteBuffer buffer = AssetBuffers.openOwned(assetInfo);
+		return new WADFile(assetInfo.getKey().getName(), buffer);
 	}
 
 }
@@ -0,0 +1,271 @@
+package com.jme3.texture.plugins.wad;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import com.jme3.texture.Image;
+import com.jme3.texture.Texture2D;
+import com.jme3.texture.plugins.dxt.DXTCompressor;
+
+/**
+ * Decoded WAD textures shared by every map of the process.
+ * <p/>
+ * Textures are keyed by the WAD file name, the texture name and the hash
+ * of the raw miptex, so the next map of a rotation picks up what the last
+ * one decoded even if the WADs were loaded again. Every loaded map holds
+ * its textures through a {@link Lease}; an entry nobody holds is kept until
+ * the decoded bytes exceed the budget, then the least recently used ones
+ * are dropped first.
+ * <p/>
+ * All methods are thread safe. Two maps asking for the same texture at the
+ * same time decode it once. Compressed and uncompressed textures are
+ * separate entries.
+ */
+public class WADTextureCache {
+
+	static Logger logger = Logger.getLogger(WADTextureCache.class);
+
+	private final static WADTextureCache instance = new WADTextureCache();
+
+	public static WADTextureCache getInstance() {
+		return instance;
+	}
+
+	private long byteBudget = 64L * 1024 * 1024;
+	private long bytes;
+
+	// access ordered, the eldest entry is the least recently used
+	private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<Key, Entry>(64, 0.75f, true);
+
+	private long hits;
+	private long misses;
+
+	/**
+	 * Sets how many bytes of unreferenced textures may be kept.
+	 */
+	public synchronized void setByteBudget(long byteBudget) {
+		this.byteBudget = byteBudget;
+		evict();
+	}
+
+	public synchronized long getByteBudget() {
+		return byteBudget;
+	}
+
+	/**
+	 * Returns the decoded bytes currently held.
+	 */
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * Opens a lease for a map.
+	 */
+	public Lease lease() {
+		return new Lease(null);
+	}
+
+	/**
+	 * Opens a lease for a map whose textures are compressed.
+	 */
+	public Lease lease(DXTCompressor compressor) {
+		return new Lease(compressor);
+	}
+
+	/**
+	 * Drops every entry nobody holds.
+	 */
+	public synchronized void clear() {
+		long budget = byteBudget;
+		byteBudget = 0;
+		evict();
+		byteBudget = budget;
+	}
+
+	private synchronized Entry acquire(Key key) {
+		Entry entry = entries.get(key);
+		if (entry == null) {
+			entry = new Entry(key);
+			entries.put(key, entry);
+			misses++;
+		} else {
+			hits++;
+		}
+		entry.references++;
+		return entry;
+	}
+
+	private synchronized void release(Entry entry) {
+		entry.references--;
+		evict();
+	}
+
+	private synchronized void decoded(Entry entry, long size) {
+		entry.size = size;
+		bytes += size;
+		evict();
+	}
+
+	private synchronized void failed(Entry entry) {
+		entry.references--;
+		if (entries.get(entry.key) == entry && entry.texture == null && entry.references == 0)
+			entries.remove(entry.key);
+	}
+
+	private void evict() {
+		Iterator<Entry> it = entries.values().iterator();
+		while (bytes > byteBudget && it.hasNext()) {
+			Entry entry = it.next();
+			if (entry.references == 0) {
+				it.remove();
+				bytes -= entry.size;
+				if (logger.isDebugEnabled())
+					logger.debug("Evicted " + entry.key);
+			}
+		}
+	}
+
+	private static long sizeOf(Texture2D texture) {
+		long size = 0;
+		Image image = texture.getImage();
+		for (ByteBuffer data : image.getData()) {
+			size += data.capacity();
+		}
+		return size;
+	}
+
+	/**
+	 * The textures one map holds. Every texture is referenced once however
+	 * often the map asks for it, and all of them are given back by
+	 * {@link #release()}.
+	 */
+	public class Lease {
+
+		private final Map<Key, Entry> held = new HashMap<Key, Entry>();
+		private final DXTCompressor compressor;
+		private boolean released;
+
+		private Lease(DXTCompressor compressor) {
+			this.compressor = compressor;
+		}
+
+		/**
+		 * Returns the texture of a WAD entry, decoding it if no map did yet.
+		 */
+		public Texture2D getTexture(WADFile wad, int index) throws IOException {
+			Key key = new Key(wad, index, compressor != null);
+			Entry entry;
+			synchronized (this) {
+				if (released)
+					throw new IllegalStateException("The lease was released");
+				entry = held.get(key);
+				if (entry == null) {
+					entry = acquire(key);
+					held.put(key, entry);
+				}
+			}
+
+			synchronized (entry) {
+				if (entry.texture == null) {
+					try {
+						Texture2D texture = wad.createTexture(index);
+						if (compressor != null)
+							texture.setImage(compressor.compress(texture.getImage(), null));
+						entry.texture = texture;
+					} catch (IOException e) {
+						synchronized (this) {
+							held.remove(key);
+						}
+						failed(entry);
+						throw e;
+					}
+					decoded(entry, sizeOf(entry.texture));
+				}
+				return entry.texture;
+			}
+		}
+
+		/**
+		 * Gives every texture back to the cache. The textures stay usable
+		 * until the cache needs their room.
+		 */
+		public void release() {
+			List<Entry> entries;
+			synchronized (this) {
+				if (released)
+					return;
+				released = true;
+				entries = new ArrayList<Entry>(held.values());
+				held.clear();
+			}
+			for (Entry entry : entries) {
+				WADTextureCache.this.release(entry);
+			}
+		}
+	}
+
+	private static class Entry {
+		final Key key;
+		Texture2D texture;
+		long size;
+		int references;
+
+		Entry(Key key) {
+			this.key = key;
+		}
+	}
+
+	private static class Key {
+		final String wad;
+		final String name;
+		final long hash;
+		final boolean compressed;
+
+		Key(WADFile wad, int index, boolean compressed) {
+			String path = wad.getName();
+			this.wad = path.substring(path.lastIndexOf('/') + 1).toLowerCase();
+			this.name = wad.getEntryName(index).toLowerCase();
+			this.hash = wad.getContentHash(index);
+			this.compressed = compressed;
+		}
+
+		@Override
+		public int hashCode() {
+			return ((wad.hashCode() * 31 + name.hashCode()) * 31 + (int) (hash ^ (hash >>> 32))) * 2 + (compressed ? 1 : 0);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key))
+				return false;
+			Key other = (Key) obj;
+			return hash == other.hash && compressed == other.compressed && wad.equals(other.wad) && name.equals(other.name);
+		}
+
+		@Override
+		public String toString() {
+			return wad + ":" + name;
+		}
+	}
+}
@@ -6,12 +6,17 @@ import java.awt.image.*;
 import java.nio.*;
 import java.net.*;
 import java.io.*;
+import java.util.Arrays;
 import javax.imageio.*;
 
 
 /**
- * <p>Manager for a greyscale alpha mask which can be used to blend
- * bitmaps onto a surface.</p>
+ * <p>An image whose pixels are kept in a direct NIO byte buffer,
+ * interleaved 8 bit components in R G B (A) order, so they can be handed
+ * to jME with toImage() without a copy.  The image is still a
+ * BufferedImage for the AWT code that needs one, but that view goes
+ * through a generic raster and is slow; code working on the pixels should
+ * use getBuffer().</p>
  * <p> </p>
  * <p> Copyright (c) 2000-2002, David J. Yazel</p>
  * <p> Teseract Software, LLP</p>
@@ -28,7 +33,7 @@ public class DirectBufferedImage extends BufferedImage {
     public static final int DIRECT_RGBA = 1;
     public static final int DIRECT_GRAY = 2;
 
-    byte []data;
+    ByteBuffer data;
 
     public int getDirectType() {
         return directType;
@@ -36,7 +41,7 @@ public class DirectBufferedImage extends BufferedImage {
 
     int directType;
 
-    private DirectBufferedImage(int type, byte[] buffer, ColorModel model, WritableRaster raster, boolean rasterPremultiplied ) {
+    private DirectBufferedImage(int type, ByteBuffer buffer, ColorModel model, WritableRaster raster, boolean rasterPremultiplied ) {
         super(model,raster,rasterPremultiplied,null);
         this.data = buffer;
         this.directType = type;
@@ -55,8 +60,64 @@ public class DirectBufferedImage extends BufferedImage {
         throw new Error("Unknown direct image type "+type);
     }
 
-    public byte[] getBackingStore() {
-        return data;
+    /**
+     * Returns a direct image of the given type over existing pixels, which
+     * are used as they are, not copied.
+     */
+    public static DirectBufferedImage wrap(int width, int height, int type, ByteBuffer pixels) {
+
+        switch(type) {
+            case DIRECT_RGB:
+                return getDirectImageRGB(width, height, pixels);
+            case DIRECT_RGBA:
+                return create(DIRECT_RGBA, width, height, 4, ColorSpace.CS_sRGB, pixels);
+            case DIRECT_GRAY:
+                return create(DIRECT_GRAY, width, height, 1, ColorSpace.CS_GRAY, pixels);
+        }
+        throw new Error("Unknown direct image type "+type);
+    }
+
+    /**
+     * Returns the pixels.  The buffer is a view of the image, its position
+     * and limit may be changed.
+     */
+    public ByteBuffer getBuffer() {
+        return data.duplicate().order(data.order());
+    }
+
+    /**
+     * Returns the number of bytes of the pixels.
+     */
+    public int getByteSize() {
+        return data.capacity();
+    }
+
+    /**
+     * Returns a jME image sharing the pixels of this image, in sRGB for
+     * color images and linear for grey ones.
+     */
+    public com.jme3.texture.Image toImage() {
+        return toImage(directType == DIRECT_GRAY ? com.jme3.texture.image.ColorSpace.Linear
+                : com.jme3.texture.image.ColorSpace.sRGB);
+    }
+
+    /**
+     * Returns a jME image sharing the pixels of this image, in the given
+     * color space.
+     */
+    public com.jme3.texture.Image toImage(com.jme3.texture.image.ColorSpace colorSpace) {
+        com.jme3.texture.Image.Format format;
+        switch (directType) {
+            case DIRECT_RGBA:
+                format = com.jme3.texture.Image.Format.RGBA8;
+                break;
+            case DIRECT_GRAY:
+                format = com.jme3.texture.Image.Format.Luminance8;
+                break;
+            default:
+                format = com.jme3.texture.Image.Format.RGB8;
+        }
+        return new com.jme3.texture.Image(format, getWidth(), getHeight(), getBuffer(), colorSpace);
     }
 
     /**
@@ -64,19 +125,26 @@ public class DirectBufferedImage extends BufferedImage {
      * @param width Width of the image
      * @param height Height of the image
      * @param pixelBytes Number of bytes in a pixel, usually 4
-     * @param byteBuffer Buffer to use as backing store
+     * @param byteBuffer Buffer to use as backing store, direct or not
      * @return
      */
     public WritableRaster getDirectRaster(int width, int height, int pixelBytes, ByteBuffer byteBuffer) {
+        return createRaster(width, height, pixelBytes, byteBuffer);
+    }
 
-        int[] bandOffset = { 0 };
+    private static WritableRaster createRaster(int width, int height, int pixelBytes, ByteBuffer byteBuffer) {
 
-        DataBufferByte buffer = new DataBufferByte(byteBuffer.array() , width * height * pixelBytes);
+        int[] bandOffset = new int[pixelBytes];
+        for (int i = 0; i < pixelBytes; i++) {
+            bandOffset[i] = i;
+        }
 
-        WritableRaster newRaster = Raster.createInterleavedRaster(buffer, width,
-                height, width, 1, bandOffset, null);
+        SampleModel model = new PixelInterleavedSampleModel(DataBuffer.TYPE_BYTE, width, height,
+                pixelBytes, width * pixelBytes, bandOffset);
+        DataBuffer buffer = new ByteBufferDataBuffer(byteBuffer, width * height * pixelBytes);
 
-        return newRaster;
+        // the raster factories only take array data buffers
+        return new WritableRaster(model, buffer, new Point()) {};
     }
 
     public static BufferedImage getCustomRGB(int width, int height) {
@@ -119,68 +187,12 @@ public class DirectBufferedImage extends BufferedImage {
      * Creates a buffered image which is backed by a NIO byte buffer
      * @return
      */
-    public static DirectBufferedImage getDirectImageRGB(int width, int height, byte[] backingStore) {
-
-        int[] bandOffset = { 0, 1, 2 };
-
-        // create the backing store
-
-        byte bb[] = (backingStore == null) ? new byte[width*height*3] : backingStore;
-
-        // create a data buffer wrapping the byte array
-
-        DataBuffer buffer = new DataBufferByte(bb,width * height * 3);
-
-        // build the raster with 3 bytes per pixel
-
-        WritableRaster newRaster = Raster.createInterleavedRaster(buffer, width,
-                height, width*3, 3, bandOffset, null);
-
-        // create a standard sRGB color space
-        ColorSpace cs = ColorSpace.getInstance(ColorSpace.CS_sRGB);
-
-        // create a color model which has three 8 bit values for RGB
-        int[] nBits = { 8, 8, 8 };
-        ColorModel cm = new ComponentColorModel(cs, nBits, false, false,
-                Transparency.OPAQUE, 0);
-
-        // create the buffered image
-
-        DirectBufferedImage newImage = new DirectBufferedImage(DIRECT_RGB,bb,cm, newRaster, false);
-
-        return newImage;
+    public static DirectBufferedImage getDirectImageRGB(int width, int height, ByteBuffer backingStore) {
+        return create(DIRECT_RGB, width, height, 3, ColorSpace.CS_sRGB, backingStore);
     }
 
     public static DirectBufferedImage getDirectImageGrey(int width, int height) {
-
-        int[] bandOffset = { 0 };
-
-        // create the backing store
-
-        byte bb[] = new byte[width*height];
-
-        // create a data buffer wrapping the byte array
-
-        DataBuffer buffer = new DataBufferByte(bb,width * height );
-
-        // build the raster with 3 bytes per pixel
-
-        WritableRaster newRaster = Raster.createInterleavedRaster(buffer, width,
-                height, width, 1, bandOffset, null);
-
-        // create a standard sRGB color space
-        ColorSpace cs = ColorSpace.getInstance(ColorSpace.CS_GRAY);
-
-        // create a color model which has three 8 bit values for RGB
-        int[] nBits = { 8 };
-        ColorModel cm = new ComponentColorModel(cs, nBits, false, false,
-                Transparency.OPAQUE, 0);
-
-        // create the buffered image
-
-        DirectBufferedImage newImage = new DirectBufferedImage(DIRECT_GRAY,bb,cm, newRaster, false);
-
-        return newImage;
+        return create(DIRECT_GRAY, width, height, 1, ColorSpace.CS_GRAY, null);
     }
 
     /**
@@ -188,34 +200,44 @@ public class DirectBufferedImage extends BufferedImage {
      * @return
      */
     public static DirectBufferedImage getDirectImageRGBA(int width, int height) {
+        return create(DIRECT_RGBA, width, height, 4, ColorSpace.CS_sRGB, null);
+    }
 
-        int[] bandOffset = { 0, 1, 2, 3 };
+    private static DirectBufferedImage create(int type, int width, int height, int pixelBytes,
+                                              int colorSpace, ByteBuffer backingStore) {
 
         // create the backing store
 
-        byte bb[] = new byte[width*height*4];
-
-        // create a data buffer wrapping the byte array
-
-        DataBufferByte buffer = new DataBufferByte(bb,width * height * 4);
+        ByteBuffer bb = backingStore;
+        if (bb == null) {
+            bb = ByteBuffer.allocateDirect(width * height * pixelBytes).order(ByteOrder.nativeOrder());
+        } else {
+            // a short buffer would only fail later in AWT or at the upload
+            long size = (long) width * height * pixelBytes;
+            if (bb.capacity() < size) {
+                throw new IllegalArgumentException("The buffer of a " + width + "x" + height
+                        + " image holds " + bb.capacity() + " bytes instead of " + size);
+            }
+            bb = bb.duplicate().order(bb.order());
+            bb.clear();
+        }
 
-        // build the raster with 4 bytes per pixel
+        // build the raster with a byte per component
 
-        WritableRaster newRaster = Raster.createInterleavedRaster(buffer, width,
-                height, width*4, 4, bandOffset, null);
+        WritableRaster newRaster = createRaster(width, height, pixelBytes, bb);
 
-        // create a standard sRGB color space
-        ColorSpace cs = ColorSpace.getInstance(ColorSpace.CS_sRGB);
+        // create a color model which has 8 bits for every component
 
-        // create a color model which has three 8 bit values for RGB
-        int[] nBits = { 8, 8, 8, 8 };
-        ColorModel cm = new ComponentColorModel(cs, nBits, true, false,
-                Transparency.TRANSLUCENT, 0);
+        ColorSpace cs = ColorSpace.getInstance(colorSpace);
+        int[] nBits = new int[pixelBytes];
+        Arrays.fill(nBits, 8);
+        boolean alpha = (type == DIRECT_RGBA);
+        ColorModel cm = new ComponentColorModel(cs, nBits, alpha, false,
+                alpha ? Transparency.TRANSLUCENT : Transparency.OPAQUE, DataBuffer.TYPE_BYTE);
 
         // create the buffered image
 
-        DirectBufferedImage newImage = new DirectBufferedImage(DIRECT_RGBA,bb, cm, newRaster, false);
-        return newImage;
+        return new DirectBufferedImage(type, bb, cm, newRaster, false);
     }
 
     /**
@@ -225,10 +247,7 @@ public class DirectBufferedImage extends BufferedImage {
      * @return
      */
     static DirectBufferedImage makeDirectImageRGB( BufferedImage source ) {
-
-        DirectBufferedImage dest = getDirectImageRGB(source.getWidth(), source.getHeight());
-        source.copyData(dest.getRaster());
-        return dest;
+        return copy(source, getDirectImageRGB(source.getWidth(), source.getHeight()));
     }
 
     /**
@@ -239,14 +258,36 @@ public class DirectBufferedImage extends BufferedImage {
      */
 
     static DirectBufferedImage makeDirectImageRGBA( BufferedImage source ) {
-        DirectBufferedImage dest = getDirectImageRGBA(source.getWidth(), source.getHeight());
-        source.copyData(dest.getRaster());
-        return dest;
+        return copy(source, getDirectImageRGBA(source.getWidth(), source.getHeight()));
     }
 
-    private static DirectBufferedImage convertViaDrawing( BufferedImage source, DirectBufferedImage dest ) {
-        Graphics2D g = (Graphics2D)dest.getGraphics();
-        g.drawImage(source,0,0,dest.getWidth(),dest.getHeight(),null);
+    /**
+     * Copies the pixels a row at a time through getRGB, drawing into the
+     * generic raster of a direct image would be a lot slower.
+     */
+    private static DirectBufferedImage copy( BufferedImage source, DirectBufferedImage dest ) {
+        int width = source.getWidth();
+        int height = source.getHeight();
+        boolean alpha = dest.getDirectType() == DIRECT_RGBA;
+        IntArrayPool pool = IntArrayPool.getInstance();
+        int[] argb = pool.get(width);
+        byte[] row = new byte[width * (alpha ? 4 : 3)];
+        ByteBuffer out = dest.getBuffer();
+        for (int y = 0; y < height; y++) {
+            source.getRGB(0, y, width, 1, argb, 0, width);
+            int i = 0;
+            for (int x = 0; x < width; x++) {
+                int c = argb[x];
+                row[i++] = (byte) (c >> 16);
+                row[i++] = (byte) (c >> 8);
+                row[i++] = (byte) c;
+                if (alpha) {
+                    row[i++] = (byte) (c >>> 24);
+                }
+            }
+            out.put(row);
+        }
+        pool.put(argb);
         return dest;
     }
 
@@ -259,10 +300,10 @@ public class DirectBufferedImage extends BufferedImage {
         boolean hasAlpha = bi.getColorModel().hasAlpha() && !bi.getColorModel().isAlphaPremultiplied();
         if (expectAlpha && hasAlpha) {
 //            System.out.println("   as alpha");
-            return convertViaDrawing(bi,getDirectImageRGBA(bi.getWidth(),bi.getHeight()));
+            return makeDirectImageRGBA(bi);
         } else {
 //            System.out.println("   as non-alpha");
-            return convertViaDrawing(bi,getDirectImageRGB(bi.getWidth(),bi.getHeight()));
+            return makeDirectImageRGB(bi);
         }
 
         /*
@@ -328,4 +369,24 @@ public class DirectBufferedImage extends BufferedImage {
     public static BufferedImage loadDirectImage(URL url) throws java.io.IOException {
         return loadDirectImage(url,false);
     }
+
+    /**
+     * A data buffer over a NIO byte buffer, direct or not.
+     */
+    private static class ByteBufferDataBuffer extends DataBuffer {
+        private final ByteBuffer buffer;
+
+        ByteBufferDataBuffer(ByteBuffer buffer, int size) {
+            super(DataBuffer.TYPE_BYTE, size);
+            this.buffer = buffer;
+        }
+
+        public int getElem(int bank, int i) {
+            return buffer.get(i) & 0xff;
+        }
+
+        public void setElem(int bank, int i, int val) {
+            buffer.put(i, (byte) val);
+        }
+    }
 }
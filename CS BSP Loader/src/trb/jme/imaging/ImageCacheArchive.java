@@ -0,0 +1,418 @@
+package trb.jme.imaging;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A single file holding the decoded pixels of every image the texture
+ * loader has seen, so the next run can skip the image decoders.
+ * <p>
+ * The file is a header, the pixel data of the images one after the other
+ * and an index.  The index has an entry per image with its name, the
+ * modification time and length of the source file, the direct image type,
+ * the dimensions and where its pixels are.  Nothing already written is
+ * ever overwritten: a new image is appended after the last index, a new
+ * index is written after it and only then the header is pointed at the
+ * new index, so a crash in between loses the new image and nothing else.
+ * <p>
+ * The file is mapped once when it is opened and pixels are handed out as
+ * slices of the mapping.  The mapping is only redone when an image
+ * appended since is asked for.
+ * <p>
+ * Images whose source changed, images appended again and old indexes are
+ * dead space.  Once it is more than half of the file the archive is
+ * rewritten with the live images on a background thread.
+ * <p>
+ * All methods are thread safe.
+ */
+public class ImageCacheArchive {
+
+    private static final int MAGIC = 0x54584341; // TXCA
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 24;
+    private static final long MIN_DEAD_BYTES = 1024 * 1024;
+
+    private static final ExecutorService compactor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "ImageCacheArchive compactor");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final File file;
+    private RandomAccessFile raf;
+    private FileChannel channel;
+    private MappedByteBuffer mapped;
+
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+    private long indexOffset;
+    private int indexLength;
+    private long deadBytes;
+    private boolean compacting;
+
+    /**
+     * Opens the archive, creating it if it does not exist.  An archive of
+     * an unknown version or with a broken index is started over.
+     */
+    public ImageCacheArchive(File file) throws IOException {
+        this.file = file;
+        open();
+    }
+
+    private void open() throws IOException {
+        raf = new RandomAccessFile(file, "rw");
+        channel = raf.getChannel();
+        entries.clear();
+        try {
+            readIndex();
+        } catch (IOException e) {
+            if (channel.size() > 0) {
+                System.out.println("Discarding image cache " + file + ": " + e.getMessage());
+            }
+            entries.clear();
+            channel.truncate(0);
+            writeIndex(HEADER_SIZE);
+        }
+        map();
+
+        long live = HEADER_SIZE + indexLength;
+        for (Entry entry : entries.values()) {
+            live += entry.length;
+        }
+        deadBytes = channel.size() - live;
+        compactIfNeeded();
+    }
+
+    private void readIndex() throws IOException {
+        long size = channel.size();
+        if (size < HEADER_SIZE) {
+            throw new IOException("no header");
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        channel.read(header, 0);
+        header.flip();
+        if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+            throw new IOException("unknown format");
+        }
+        indexOffset = header.getLong();
+        indexLength = header.getInt();
+        if (indexOffset < HEADER_SIZE || indexLength < 4 || indexOffset + indexLength > size) {
+            throw new IOException("bad index position");
+        }
+
+        ByteBuffer index = ByteBuffer.allocate(indexLength);
+        channel.read(index, indexOffset);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(index.array()));
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            Entry entry = Entry.read(in);
+            if (entry.offset < HEADER_SIZE || entry.offset + entry.length > indexOffset) {
+                throw new IOException("bad entry " + entry.name);
+            }
+            entries.put(entry.name, entry);
+        }
+    }
+
+    /**
+     * Writes the index at the given offset and then points the header at
+     * it.
+     */
+    private void writeIndex(long offset) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(entries.size());
+        for (Entry entry : entries.values()) {
+            entry.write(out);
+        }
+        out.close();
+        channel.write(ByteBuffer.wrap(bytes.toByteArray()), offset);
+        channel.force(false);
+
+        indexOffset = offset;
+        indexLength = bytes.size();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(VERSION).putLong(indexOffset).putInt(indexLength).putInt(0);
+        header.flip();
+        channel.write(header, 0);
+    }
+
+    private void map() throws IOException {
+        mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+
+    /**
+     * Returns the cached image of a source file, or null if there is none
+     * or the source was modified since it was cached.
+     *
+     * @param modified the modification time of the source
+     * @param sourceLength the length of the source
+     */
+    public synchronized Entry get(String name, long modified, long sourceLength) throws IOException {
+        Entry entry = entries.get(name);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.modified != modified || entry.sourceLength != sourceLength) {
+            entries.remove(name);
+            deadBytes += entry.length;
+            return null;
+        }
+        if (entry.offset + entry.length > mapped.capacity()) {
+            map();
+        }
+        if (entry.data == null) {
+            ByteBuffer data = mapped.duplicate();
+            data.limit((int) (entry.offset + entry.length));
+            data.position((int) entry.offset);
+            entry.data = data.slice();
+        }
+        return entry;
+    }
+
+    /**
+     * Appends the remaining bytes of pixels as the image, replacing what
+     * was cached for the name.
+     */
+    public synchronized void put(String name, long modified, long sourceLength,
+                                 int type, int width, int height, ByteBuffer pixels) throws IOException {
+        long offset = indexOffset + indexLength;
+        int length = pixels.remaining();
+        ByteBuffer data = pixels.duplicate();
+        while (data.hasRemaining()) {
+            channel.write(data, offset + length - data.remaining());
+        }
+
+        Entry entry = new Entry(name, modified, sourceLength, type, width, height, offset, length);
+        Entry old = entries.put(name, entry);
+        if (old != null) {
+            deadBytes += old.length;
+        }
+        deadBytes += indexLength;
+        writeIndex(offset + length);
+        compactIfNeeded();
+    }
+
+    /**
+     * Returns the bytes taken by images nobody can get any more and by old
+     * indexes.
+     */
+    public synchronized long getDeadBytes() {
+        return deadBytes;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    private void compactIfNeeded() throws IOException {
+        if (!compacting && deadBytes > MIN_DEAD_BYTES && deadBytes > channel.size() / 2) {
+            compacting = true;
+            compactor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        rewrite();
+                    } catch (IOException e) {
+                        System.out.println("Cannot compact image cache " + file + ": " + e.getMessage());
+                    } catch (RuntimeException e) {
+                        System.out.println("Cannot compact image cache " + file + ": " + e);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Rewrites the archive with the live images only.  The images are
+     * copied without holding the lock, only the images added meanwhile and
+     * the swap of the files block the loaders.  Does nothing if a
+     * compaction is already running.
+     */
+    public void compact() throws IOException {
+        synchronized (this) {
+            if (compacting) {
+                return;
+            }
+            compacting = true;
+        }
+        rewrite();
+    }
+
+    /**
+     * Does the compaction, the caller has set compacting.
+     */
+    private void rewrite() throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        Map<Entry, Long> copied = new HashMap<Entry, Long>();
+        List<Entry> snapshot;
+        MappedByteBuffer source;
+        synchronized (this) {
+            snapshot = new ArrayList<Entry>(entries.values());
+            map();
+            source = mapped;
+        }
+
+        RandomAccessFile out = new RandomAccessFile(tmp, "rw");
+        try {
+            FileChannel target = out.getChannel();
+            target.truncate(0);
+            long offset = HEADER_SIZE;
+            for (Entry entry : snapshot) {
+                offset = copy(source, entry, target, offset, copied);
+            }
+
+            synchronized (this) {
+                // put() appends without mapping, the new images are past
+                // the end of the mapping
+                if (channel.size() > mapped.capacity()) {
+                    map();
+                }
+                for (Entry entry : entries.values()) {
+                    if (!copied.containsKey(entry)) {
+                        offset = copy(mapped, entry, target, offset, copied);
+                    }
+                }
+                target.force(false);
+                out.close();
+
+                Map<String, Entry> moved = new HashMap<String, Entry>();
+                for (Entry entry : entries.values()) {
+                    moved.put(entry.name, entry.moveTo(copied.get(entry)));
+                }
+                raf.close();
+                mapped = null;
+                if (!tmp.renameTo(file)) {
+                    file.delete();
+                    if (!tmp.renameTo(file)) {
+                        throw new IOException("cannot replace " + file);
+                    }
+                }
+                raf = new RandomAccessFile(file, "rw");
+                channel = raf.getChannel();
+                entries.clear();
+                entries.putAll(moved);
+                writeIndex(offset);
+                map();
+                // images dropped while copying are still in the new file
+                deadBytes = offset - HEADER_SIZE;
+                for (Entry entry : entries.values()) {
+                    deadBytes -= entry.length;
+                }
+            }
+        } finally {
+            out.close();
+            tmp.delete();
+            synchronized (this) {
+                compacting = false;
+                if (mapped == null) {
+                    // the swap failed half way, start from what is on disk
+                    open();
+                }
+            }
+        }
+    }
+
+    private static long copy(MappedByteBuffer source, Entry entry, FileChannel target, long offset,
+                             Map<Entry, Long> copied) throws IOException {
+        ByteBuffer data = source.duplicate();
+        data.limit((int) (entry.offset + entry.length));
+        data.position((int) entry.offset);
+        while (data.hasRemaining()) {
+            target.write(data, offset + data.position() - entry.offset);
+        }
+        copied.put(entry, offset);
+        return offset + entry.length;
+    }
+
+    public synchronized void close() throws IOException {
+        raf.close();
+        mapped = null;
+        entries.clear();
+    }
+
+    /**
+     * An image of the archive.
+     */
+    public static class Entry {
+        final String name;
+        final long modified;
+        final long sourceLength;
+        final int type;
+        final int width;
+        final int height;
+        final long offset;
+        final int length;
+        ByteBuffer data;
+
+        Entry(String name, long modified, long sourceLength, int type, int width, int height,
+              long offset, int length) {
+            this.name = name;
+            this.modified = modified;
+            this.sourceLength = sourceLength;
+            this.type = type;
+            this.width = width;
+            this.height = height;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        static Entry read(DataInputStream in) throws IOException {
+            return new Entry(in.readUTF(), in.readLong(), in.readLong(), in.readInt(),
+                    in.readInt(), in.readInt(), in.readLong(), in.readInt());
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeUTF(name);
+            out.writeLong(modified);
+            out.writeLong(sourceLength);
+            out.writeInt(type);
+            out.writeInt(width);
+            out.writeInt(height);
+            out.writeLong(offset);
+            out.writeInt(length);
+        }
+
+        Entry moveTo(long offset) {
+            return new Entry(name, modified, sourceLength, type, width, height, offset, length);
+        }
+
+        /**
+         * Returns the direct image type, one of the DirectBufferedImage
+         * DIRECT constants.
+         */
+        public int getType() {
+            return type;
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        /**
+         * Returns the pixels as a read only slice of the mapping.  Every
+         * call returns a new view, so callers may move its position.
+         */
+        public ByteBuffer getData() {
+            return data.duplicate();
+        }
+    }
+}
@@ -0,0 +1,428 @@
+package trb.jme.imaging;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+/**
+ * The directories and class path roots the texture loader searches, indexed
+ * so that finding a file is a hash lookup per root instead of a stat or a
+ * class loader search per root.
+ * <p>
+ * Every root is walked once when it is added and its files are put in a
+ * map from their path below the root to where they are.  Names are matched
+ * ignoring case and with either kind of separator, as the content of the
+ * GoldSrc games mixes both.  Roots are searched in the order they were
+ * added.
+ * <p>
+ * Directories are watched with a WatchService and their index is updated
+ * when files are created or deleted, jars are indexed once.  Class path
+ * folders are only indexed when a resource is first looked for, as most
+ * loads never get that far, and are not watched.  Only the jars holding
+ * the folder are indexed; the root of the class path would mean every jar,
+ * so it is searched through the class loader instead.
+ * <p>
+ * All methods are thread safe.
+ */
+public class ImageSearchPath {
+
+    private final List<Root> roots = new CopyOnWriteArrayList<Root>();
+    private final List<ClasspathFolder> pending = new CopyOnWriteArrayList<ClasspathFolder>();
+    // class path roots searched with getResource, in the order they were added
+    private final List<ClasspathFolder> unindexed = new CopyOnWriteArrayList<ClasspathFolder>();
+    private final Map<WatchKey, Watched> watched = new ConcurrentHashMap<WatchKey, Watched>();
+    private WatchService watcher;
+    private Thread watcherThread;
+
+    /**
+     * Returns the index key of a name: forward slashes, no leading slash,
+     * lower case.
+     */
+    static String key(String name) {
+        String key = name.replace('\\', '/');
+        while (key.startsWith("/")) {
+            key = key.substring(1);
+        }
+        if (key.startsWith("./")) {
+            key = key.substring(2);
+        }
+        return key.toLowerCase(Locale.ENGLISH);
+    }
+
+    /**
+     * Adds a directory and everything below it.
+     */
+    public void addDirectory(String name) {
+        Root root = new Root();
+        root.dir = Paths.get(name).toAbsolutePath();
+        roots.add(root);
+        index(root, root.dir);
+    }
+
+    /**
+     * Adds a class path folder, the equivalent of searching it with
+     * Class.getResource.  The folder is looked up in every directory and
+     * jar of the class path.
+     */
+    public void addClasspathFolder(ClassLoader loader, String folder) {
+        pending.add(new ClasspathFolder(loader, folder));
+    }
+
+    private synchronized void indexClasspath() {
+        for (ClasspathFolder folder : pending) {
+            indexClasspathFolder(folder.loader, folder.folder);
+        }
+        pending.clear();
+    }
+
+    private void indexClasspathFolder(ClassLoader loader, String folder) {
+        // entries of jars are case sensitive like getResource, only the names below the folder are not
+        String prefix = folder.replace('\\', '/');
+        while (prefix.startsWith("/")) {
+            prefix = prefix.substring(1);
+        }
+        if (prefix.length() > 0 && !prefix.endsWith("/")) {
+            prefix += "/";
+        }
+
+        if (prefix.length() == 0) {
+            unindexed.add(new ClasspathFolder(loader, prefix));
+            return;
+        }
+
+        try {
+            Enumeration<URL> urls = loader.getResources(prefix);
+            while (urls.hasMoreElements()) {
+                addClasspathRoot(urls.nextElement(), prefix);
+            }
+        } catch (IOException e) {
+            System.out.println("Cannot search the class path for " + folder + ": " + e);
+        }
+
+        // jars without directory entries are not returned by getResources
+        String classPath = System.getProperty("java.class.path", "");
+        for (String entry : classPath.split(File.pathSeparator)) {
+            if (entry.toLowerCase(Locale.ENGLISH).endsWith(".jar")) {
+                try {
+                    URL url = new URL("jar:" + new File(entry).toURI().toURL() + "!/" + prefix);
+                    addClasspathRoot(url, prefix);
+                } catch (IOException e) {
+                    System.out.println("Cannot index " + entry + ": " + e);
+                }
+            }
+        }
+    }
+
+    private void addClasspathRoot(URL url, String prefix) throws IOException {
+        if ("file".equals(url.getProtocol())) {
+            try {
+                Path dir = Paths.get(url.toURI());
+                for (Root root : roots) {
+                    if (root.classpath && dir.equals(root.dir)) {
+                        return;
+                    }
+                }
+                Root root = new Root();
+                root.dir = dir;
+                root.classpath = true;
+                roots.add(root);
+                index(root, dir);
+            } catch (URISyntaxException e) {
+                throw new IOException(e.getMessage());
+            }
+        } else if ("jar".equals(url.getProtocol())) {
+            URLConnection connection = url.openConnection();
+            if (!(connection instanceof JarURLConnection)) {
+                return;
+            }
+            URL jarUrl = ((JarURLConnection) connection).getJarFileURL();
+            String base = "jar:" + jarUrl + "!/";
+            for (Root root : roots) {
+                if (base.equals(root.jar) && prefix.equals(root.prefix)) {
+                    return;
+                }
+            }
+            Root root = new Root();
+            root.jar = base;
+            root.prefix = prefix;
+            JarFile jar;
+            try {
+                jar = new JarFile(new File(jarUrl.toURI()));
+            } catch (URISyntaxException e) {
+                throw new IOException(e.getMessage());
+            } catch (IOException e) {
+                // not a jar we can open, nothing to index
+                return;
+            }
+            try {
+                Enumeration<JarEntry> entries = jar.entries();
+                while (entries.hasMoreElements()) {
+                    JarEntry entry = entries.nextElement();
+                    String name = entry.getName();
+                    if (!entry.isDirectory() && name.startsWith(prefix)) {
+                        root.files.put(key(name.substring(prefix.length())), name);
+                    }
+                }
+            } finally {
+                jar.close();
+            }
+            if (!root.files.isEmpty()) {
+                roots.add(root);
+            }
+        }
+    }
+
+    /**
+     * Returns the path of the file with the given name in the first
+     * directory having it, or null.  A file the index does not know yet,
+     * written before the watcher saw it, is looked for on disk and added.
+     */
+    public String findFile(String name) {
+        String key = key(name);
+        for (Root root : roots) {
+            if (root.dir != null && !root.classpath) {
+                String file = root.files.get(key);
+                if (file != null) {
+                    return file;
+                }
+            }
+        }
+
+        String relative = name.replace('\\', '/');
+        while (relative.startsWith("/")) {
+            relative = relative.substring(1);
+        }
+        for (Root root : roots) {
+            if (root.dir != null && !root.classpath) {
+                try {
+                    Path path = root.dir.resolve(relative);
+                    if (Files.isRegularFile(path)) {
+                        root.files.put(key, path.toString());
+                        return path.toString();
+                    }
+                } catch (InvalidPathException e) {
+                    // not a name of this file system
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the URL of the class path resource with the given name in
+     * the first class path root having it, or null.
+     */
+    public URL findResource(String name) {
+        if (!pending.isEmpty()) {
+            indexClasspath();
+        }
+        String key = key(name);
+        for (Root root : roots) {
+            if (root.classpath || root.jar != null) {
+                String file = root.files.get(key);
+                if (file != null) {
+                    try {
+                        if (root.jar != null) {
+                            return new URL(root.jar + file);
+                        }
+                        return new File(file).toURI().toURL();
+                    } catch (IOException e) {
+                        System.out.println(e);
+                    }
+                }
+            }
+        }
+        if (!unindexed.isEmpty()) {
+            String resource = name.replace('\\', '/');
+            while (resource.startsWith("/")) {
+                resource = resource.substring(1);
+            }
+            for (ClasspathFolder folder : unindexed) {
+                URL url = folder.loader.getResource(folder.folder + resource);
+                if (url != null) {
+                    return url;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Walks a directory of a root, adding its files and watching it and
+     * its sub directories.
+     */
+    private void index(final Root root, Path dir) {
+        if (!Files.isDirectory(dir)) {
+            return;
+        }
+        try {
+            Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                    // the class path is build output, it is not watched
+                    if (!root.classpath) {
+                        watch(root, dir);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    if (attrs.isRegularFile()) {
+                        root.files.put(key(root.dir.relativize(file).toString()), file.toString());
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            System.out.println("Cannot index " + dir + ": " + e);
+        }
+    }
+
+    private synchronized void watch(Root root, Path dir) throws IOException {
+        if (watcher == null) {
+            // the thread keeps its own reference, close() clears the field
+            final WatchService service = FileSystems.getDefault().newWatchService();
+            watcher = service;
+            watcherThread = new Thread(new Runnable() {
+                public void run() {
+                    processEvents(service);
+                }
+            }, "ImageSearchPath watcher");
+            watcherThread.setDaemon(true);
+            watcherThread.start();
+        }
+        WatchKey key = dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_DELETE);
+        watched.put(key, new Watched(root, dir));
+    }
+
+    private void processEvents(WatchService service) {
+        try {
+            while (true) {
+                WatchKey key = service.take();
+                Watched dir = watched.get(key);
+                if (dir != null) {
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        update(dir, event);
+                    }
+                }
+                if (!key.reset()) {
+                    watched.remove(key);
+                }
+            }
+        } catch (InterruptedException e) {
+            // closed
+        } catch (ClosedWatchServiceException e) {
+            // closed
+        }
+    }
+
+    private void update(Watched dir, WatchEvent<?> event) {
+        Root root = dir.root;
+        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+            // events were lost, start over
+            root.files.clear();
+            index(root, root.dir);
+            return;
+        }
+
+        Path path = dir.dir.resolve((Path) event.context());
+        String key = key(root.dir.relativize(path).toString());
+        if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+            if (Files.isDirectory(path)) {
+                index(root, path);
+            } else {
+                root.files.put(key, path.toString());
+            }
+        } else if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+            if (root.files.remove(key) == null) {
+                // a directory, drop everything below it
+                String prefix = key + "/";
+                Iterator<String> it = root.files.keySet().iterator();
+                while (it.hasNext()) {
+                    if (it.next().startsWith(prefix)) {
+                        it.remove();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops watching the directories.  The index keeps working but is no
+     * longer updated.
+     */
+    public synchronized void close() {
+        if (watcher != null) {
+            try {
+                watcher.close();
+            } catch (IOException e) {
+                System.out.println(e);
+            }
+            watcher = null;
+            watched.clear();
+        }
+    }
+
+    private static class Root {
+        // a directory, or a directory of the class path
+        Path dir;
+        boolean classpath;
+        // a jar of the class path, "jar:<url>!/", and the folder in it
+        String jar;
+        String prefix;
+        // index key to file path, or to the jar entry name
+        final Map<String, String> files = new ConcurrentHashMap<String, String>();
+    }
+
+    private static class ClasspathFolder {
+        final ClassLoader loader;
+        final String folder;
+
+        ClasspathFolder(ClassLoader loader, String folder) {
+            this.loader = loader;
+            this.folder = folder;
+        }
+    }
+
+    private static class Watched {
+        final Root root;
+        final Path dir;
+
+        Watched(Root root, Path dir) {
+            this.root = root;
+            this.dir = dir;
+        }
+    }
+}
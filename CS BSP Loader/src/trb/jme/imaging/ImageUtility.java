@@ -9,7 +9,6 @@ import javax.imageio.*;
 
 
 public class ImageUtility {
-    static HashMap intArrays = new HashMap();
     static HashMap images = new HashMap();
 
     /**
@@ -35,7 +34,7 @@ public class ImageUtility {
         boolean right = false;
 
         // pull the data out
-        int[] pixels = new int[width * height];
+        int[] pixels = getArray(width * height);
         image.getRGB(0, 0, width, height, pixels, 0, width);
 
         // now scan for the X bounds
@@ -76,6 +75,8 @@ public class ImageUtility {
             }
         }
 
+        putArray(pixels);
+
         System.out.println("Image alpha bounds : " + lx + "," + ly + " -> " +
             ux + "," + uy);
         r.setBounds(lx, ly, ux - lx + 1, uy - ly + 1);
@@ -103,27 +104,32 @@ public class ImageUtility {
         return (y * maxX) + x;
     }
 
-    private static synchronized int[] getArray(int size) {
-        Integer key = new Integer(size);
-        ArrayList list = (ArrayList) intArrays.get(key);
-
-        if ((list == null) || (list.size() == 0)) {
-            return new int[size];
-        } else {
-            return (int[]) list.remove(0);
-        }
+    /**
+     * Returns a scratch array of at least size ints from the shared pool.
+     */
+    private static int[] getArray(int size) {
+        return IntArrayPool.getInstance().get(size);
     }
 
-    private static synchronized void putArray(int[] a) {
-        Integer key = new Integer(a.length);
-        ArrayList list = (ArrayList) intArrays.get(key);
-
-        if (list == null) {
-            list = new ArrayList();
-            intArrays.put(key, list);
-        }
+    private static void putArray(int[] a) {
+        IntArrayPool.getInstance().put(a);
+    }
 
-        list.add(a);
+    /**
+     * Downsamples a direct image on its buffer into a direct image
+     * of the same type, without going through getRGB and setRGB.  Unlike
+     * downSampleRGB and downSampleRGBA the average is rounded, see
+     * MipMapGenerator for the whole chain at once.
+     */
+    public static DirectBufferedImage downSampleDirect(DirectBufferedImage source) {
+        int width = source.getWidth();
+        int height = source.getHeight();
+        DirectBufferedImage dest = DirectBufferedImage.make((width > 1) ? (width / 2) : 1,
+                (height > 1) ? (height / 2) : 1, source.getDirectType());
+        MipMapGenerator.downSample(source.getBuffer(), 0, width, height,
+            dest.getBuffer(), 0, MipMapGenerator.getComponents(source),
+            MipMapGenerator.FILTER_BOX);
+        return dest;
     }
 
     /**
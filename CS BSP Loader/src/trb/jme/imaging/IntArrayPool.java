@@ -0,0 +1,219 @@
+package trb.jme.imaging;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Scratch int arrays for the image utilities.
+ * <p>
+ * Arrays come in size classes, powers of two from 256 ints, and an array
+ * of the class at or above the asked size is handed out, so images of
+ * slightly different sizes share arrays.  Every thread keeps the last
+ * array it gave back of each class up to 1 MB without any locking, at most
+ * 2 MB per thread; the other arrays go to queues shared by all threads.
+ * The shared arrays are held up to a byte cap, when an array does not fit
+ * the class holding the most bytes gives up arrays until it does, or the
+ * array is dropped.  The thread local arrays are outside the cap, as they
+ * go away with their thread without the pool knowing.  Arrays larger than
+ * the largest class are never kept.
+ * <p>
+ * The arrays are not cleared.
+ */
+public class IntArrayPool {
+
+    private static final int MIN_SHIFT = 8;
+    private static final int MAX_SHIFT = 24;
+    // thread local arrays are not counted against the cap
+    private static final int MAX_LOCAL_SHIFT = 18;
+    private static final int CLASSES = MAX_SHIFT - MIN_SHIFT + 1;
+
+    private static final IntArrayPool instance = new IntArrayPool();
+
+    public static IntArrayPool getInstance() {
+        return instance;
+    }
+
+    private final ThreadLocal<int[][]> local = new ThreadLocal<int[][]>() {
+        @Override
+        protected int[][] initialValue() {
+            return new int[MAX_LOCAL_SHIFT - MIN_SHIFT + 1][];
+        }
+    };
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private final ConcurrentLinkedQueue<int[]>[] shared = new ConcurrentLinkedQueue[CLASSES];
+    private final AtomicInteger[] sharedCounts = new AtomicInteger[CLASSES];
+
+    private volatile long byteCap = 32L * 1024 * 1024;
+    private final AtomicLong retainedBytes = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public IntArrayPool() {
+        for (int i = 0; i < CLASSES; i++) {
+            shared[i] = new ConcurrentLinkedQueue<int[]>();
+            sharedCounts[i] = new AtomicInteger();
+        }
+    }
+
+    /**
+     * Returns the size class of an array size, -1 if it is too large.
+     */
+    private static int sizeClass(int size) {
+        int shift = size <= (1 << MIN_SHIFT) ? MIN_SHIFT : 32 - Integer.numberOfLeadingZeros(size - 1);
+        return shift > MAX_SHIFT ? -1 : shift - MIN_SHIFT;
+    }
+
+    /**
+     * Returns an array of at least size ints.
+     */
+    public int[] get(int size) {
+        int c = sizeClass(size);
+        if (c < 0) {
+            misses.incrementAndGet();
+            return new int[size];
+        }
+
+        if (c + MIN_SHIFT <= MAX_LOCAL_SHIFT) {
+            int[][] slots = local.get();
+            int[] a = slots[c];
+            if (a != null) {
+                slots[c] = null;
+                hits.incrementAndGet();
+                return a;
+            }
+        }
+
+        int[] a = shared[c].poll();
+        if (a != null) {
+            sharedCounts[c].decrementAndGet();
+            retainedBytes.addAndGet(-4L * a.length);
+            hits.incrementAndGet();
+            return a;
+        }
+        misses.incrementAndGet();
+        return new int[1 << (c + MIN_SHIFT)];
+    }
+
+    /**
+     * Gives an array back.  Arrays which are not of a size class are
+     * dropped.
+     */
+    public void put(int[] a) {
+        int c = sizeClass(a.length);
+        if (c < 0 || a.length != 1 << (c + MIN_SHIFT)) {
+            return;
+        }
+
+        if (c + MIN_SHIFT <= MAX_LOCAL_SHIFT) {
+            int[][] slots = local.get();
+            if (slots[c] == null) {
+                slots[c] = a;
+                return;
+            }
+        }
+
+        long bytes = 4L * a.length;
+        if (!reserve(bytes, c)) {
+            evictions.incrementAndGet();
+            return;
+        }
+        shared[c].offer(a);
+        sharedCounts[c].incrementAndGet();
+    }
+
+    /**
+     * Makes room for bytes below the cap, taking arrays from the class
+     * holding the most bytes other than the one being given back.
+     */
+    private boolean reserve(long bytes, int keep) {
+        while (true) {
+            long retained = retainedBytes.get();
+            if (retained + bytes <= byteCap) {
+                if (retainedBytes.compareAndSet(retained, retained + bytes)) {
+                    return true;
+                }
+                continue;
+            }
+
+            int largest = -1;
+            long most = 0;
+            for (int i = 0; i < CLASSES; i++) {
+                long held = (long) sharedCounts[i].get() << (i + MIN_SHIFT + 2);
+                if (i != keep && held > most) {
+                    most = held;
+                    largest = i;
+                }
+            }
+            if (largest < 0 || bytes > byteCap) {
+                return false;
+            }
+            int[] victim = shared[largest].poll();
+            if (victim != null) {
+                sharedCounts[largest].decrementAndGet();
+                retainedBytes.addAndGet(-4L * victim.length);
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Sets how many bytes of shared arrays are kept, dropping arrays
+     * until they fit.
+     */
+    public void setByteCap(long byteCap) {
+        this.byteCap = byteCap;
+        for (int i = CLASSES - 1; i >= 0 && retainedBytes.get() > byteCap; i--) {
+            int[] a;
+            while (retainedBytes.get() > byteCap && (a = shared[i].poll()) != null) {
+                sharedCounts[i].decrementAndGet();
+                retainedBytes.addAndGet(-4L * a.length);
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    public long getByteCap() {
+        return byteCap;
+    }
+
+    /**
+     * Returns the bytes of the shared arrays.  The thread local ones are
+     * not counted, each thread which used the pool can hold up to
+     * {@link #getLocalByteLimit()} more.
+     */
+    public long getRetainedBytes() {
+        return retainedBytes.get();
+    }
+
+    /**
+     * Returns how many bytes of arrays a thread keeps for itself at most,
+     * one array of every class up to 1 MB.
+     */
+    public static long getLocalByteLimit() {
+        return 4L * ((1L << (MAX_LOCAL_SHIFT + 1)) - (1L << MIN_SHIFT));
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Returns how many arrays were dropped or given up for the cap.
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    @Override
+    public String toString() {
+        return "IntArrayPool[hits=" + getHits() + ", misses=" + getMisses() + ", evictions="
+                + getEvictions() + ", retained=" + getRetainedBytes() + "]";
+    }
+}
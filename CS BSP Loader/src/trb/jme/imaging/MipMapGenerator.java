@@ -0,0 +1,252 @@
+package trb.jme.imaging;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Builds the whole mip map chain of an image working on its raw bytes.
+ * <p>
+ * The image is interleaved 8 bit components, 1 to 4 of them, like the
+ * buffer of a DirectBufferedImage.  The levels are written one after
+ * the other into a single buffer, level 0 first, which is the layout jME
+ * and OpenGL expect.  Every level is half the size of the one before,
+ * rounded down and at least 1; a texel of a level is the average of the 2x2
+ * texels above it, the last row or column of an odd sized level is
+ * dropped like the old ImageUtility.downSample did.
+ * <p>
+ * The plain box filter averages the bytes.  The gamma correct one averages
+ * the colors in linear space, which keeps bright details from getting
+ * darker at every level; alpha is always averaged as it is.
+ * <p>
+ * The rows of a level are split across a fork join pool when one is given.
+ * <p>
+ * None of the map loading paths need it today: the miptex textures carry
+ * the four levels made by the map tools, the lightmap pages are drawn
+ * without mip maps like GoldSrc does, and SkyFactory samples the TGA sky
+ * faces with BilinearNoMipMaps, so a chain would only cost memory there.
+ * It is for images loaded on their own, like the ones of TextureLoader.
+ */
+public class MipMapGenerator {
+
+    public static final int FILTER_BOX = 0;
+    public static final int FILTER_GAMMA = 1;
+
+    // fewest texels worth a task of their own
+    private static final int MIN_TEXELS_PER_TASK = 16 * 1024;
+
+    // sRGB to linear in 16 bits, and back from the average of four
+    private static final int[] TO_LINEAR = new int[256];
+    private static final byte[] TO_SRGB = new byte[65536];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            double c = i / 255.0;
+            double linear = c <= 0.04045 ? c / 12.92 : Math.pow((c + 0.055) / 1.055, 2.4);
+            TO_LINEAR[i] = (int) Math.round(linear * 65535);
+        }
+        for (int i = 0; i < 65536; i++) {
+            double linear = i / 65535.0;
+            double c = linear <= 0.0031308 ? linear * 12.92 : 1.055 * Math.pow(linear, 1 / 2.4) - 0.055;
+            TO_SRGB[i] = (byte) Math.round(c * 255);
+        }
+    }
+
+    /**
+     * Returns the byte size of every level of the chain.
+     */
+    public static int[] getMipMapSizes(int width, int height, int components) {
+        int levels = 1;
+        for (int size = Math.max(width, height); size > 1; size >>= 1) {
+            levels++;
+        }
+        int[] sizes = new int[levels];
+        for (int i = 0; i < levels; i++) {
+            sizes[i] = Math.max(width >> i, 1) * Math.max(height >> i, 1) * components;
+        }
+        return sizes;
+    }
+
+    /**
+     * Returns a new direct buffer holding the image and all its mip maps.
+     */
+    public static ByteBuffer generate(byte[] pixels, int width, int height, int components,
+                                      int filter, ForkJoinPool pool) {
+        ByteBuffer chain = allocateChain(width, height, components);
+        chain.put(pixels, 0, width * height * components);
+        chain.clear();
+        generate(chain, width, height, components, filter, pool);
+        return chain;
+    }
+
+    /**
+     * Returns a new direct buffer holding a direct image and all its mip
+     * maps.
+     */
+    public static ByteBuffer generate(DirectBufferedImage image, int filter, ForkJoinPool pool) {
+        int components = getComponents(image);
+        ByteBuffer chain = allocateChain(image.getWidth(), image.getHeight(), components);
+        chain.put(image.getBuffer());
+        chain.clear();
+        generate(chain, image.getWidth(), image.getHeight(), components, filter, pool);
+        return chain;
+    }
+
+    private static ByteBuffer allocateChain(int width, int height, int components) {
+        int total = 0;
+        for (int size : getMipMapSizes(width, height, components)) {
+            total += size;
+        }
+        return ByteBuffer.allocateDirect(total).order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * Fills the mip maps of a chain in place.  Level 0 must already be at
+     * the start of the buffer, which must be large enough for all the
+     * levels.  The position and limit of the buffer are not used.
+     */
+    public static void generate(ByteBuffer chain, int width, int height, int components,
+                                int filter, ForkJoinPool pool) {
+        int[] sizes = getMipMapSizes(width, height, components);
+        int offset = 0;
+        for (int level = 1; level < sizes.length; level++) {
+            Level task = new Level(chain, offset, offset + sizes[level - 1],
+                    Math.max(width >> (level - 1), 1), Math.max(height >> (level - 1), 1),
+                    components, filter);
+            int rows = task.destHeight;
+            if (pool != null && rows > 1 && (long) rows * task.destWidth > MIN_TEXELS_PER_TASK) {
+                pool.invoke(task.rows(0, rows));
+            } else {
+                task.downSample(0, rows);
+            }
+            offset += sizes[level - 1];
+        }
+    }
+
+    /**
+     * Writes one level from the level above, rows may be written
+     * concurrently.
+     */
+    static void downSample(ByteBuffer source, int sourceOffset, int sourceWidth, int sourceHeight,
+                           ByteBuffer dest, int destOffset, int components, int filter) {
+        // the source and the destination need not be the same buffer
+        Level level = new Level(source, sourceOffset, destOffset, sourceWidth, sourceHeight, components, filter);
+        level.dest = dest;
+        level.downSample(0, level.destHeight);
+    }
+
+    static int getComponents(DirectBufferedImage image) {
+        switch (image.getDirectType()) {
+            case DirectBufferedImage.DIRECT_RGB:
+                return 3;
+            case DirectBufferedImage.DIRECT_RGBA:
+                return 4;
+            default:
+                return 1;
+        }
+    }
+
+    private static class Level {
+        final ByteBuffer source;
+        ByteBuffer dest;
+        final int sourceOffset;
+        final int destOffset;
+        final int sourceWidth;
+        final int sourceHeight;
+        final int destWidth;
+        final int destHeight;
+        final int components;
+        final int filter;
+
+        Level(ByteBuffer chain, int sourceOffset, int destOffset, int sourceWidth, int sourceHeight,
+              int components, int filter) {
+            this.source = chain;
+            this.dest = chain;
+            this.sourceOffset = sourceOffset;
+            this.destOffset = destOffset;
+            this.sourceWidth = sourceWidth;
+            this.sourceHeight = sourceHeight;
+            this.destWidth = Math.max(sourceWidth >> 1, 1);
+            this.destHeight = Math.max(sourceHeight >> 1, 1);
+            this.components = components;
+            this.filter = filter;
+        }
+
+        RecursiveAction rows(final int from, final int to) {
+            return new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    if (to - from > 1 && (long) (to - from) * destWidth > MIN_TEXELS_PER_TASK) {
+                        int middle = (from + to) >>> 1;
+                        invokeAll(rows(from, middle), rows(middle, to));
+                    } else {
+                        downSample(from, to);
+                    }
+                }
+            };
+        }
+
+        void downSample(int from, int to) {
+            int sourceStride = sourceWidth * components;
+            int destStride = destWidth * components;
+            // a dimension of 1 uses the same texel twice
+            int dx = sourceWidth > 1 ? components : 0;
+            // alpha is never gamma corrected
+            int colors = filter != FILTER_GAMMA ? 0 : (components == 2 || components == 4) ? components - 1 : components;
+
+            // rows are moved in bulk, buffers are slow one byte at a time
+            byte[] row0 = new byte[sourceStride];
+            byte[] row1 = sourceHeight > 1 ? new byte[sourceStride] : row0;
+            byte[] out = new byte[destStride];
+            ByteBuffer in = source.duplicate();
+            ByteBuffer result = dest.duplicate();
+
+            for (int y = from; y < to; y++) {
+                int s = sourceOffset + (sourceHeight > 1 ? y * 2 : y) * sourceStride;
+                in.position(s);
+                in.get(row0);
+                if (row1 != row0) {
+                    in.get(row1);
+                }
+                if (colors == 0) {
+                    box(row0, row1, out, dx, components);
+                } else {
+                    gamma(row0, row1, out, dx, components, colors);
+                }
+                result.position(destOffset + y * destStride);
+                result.put(out);
+            }
+        }
+
+        private static void box(byte[] row0, byte[] row1, byte[] out, int dx, int components) {
+            // one pass over the bytes of the level, i skips a texel after every texel
+            for (int j = 0, i = 0, c = 0; j < out.length; j++, i++) {
+                int sum = (row0[i] & 0xff) + (row0[i + dx] & 0xff) + (row1[i] & 0xff) + (row1[i + dx] & 0xff);
+                out[j] = (byte) ((sum + 2) >> 2);
+                if (++c == components) {
+                    c = 0;
+                    i += dx;
+                }
+            }
+        }
+
+        private static void gamma(byte[] row0, byte[] row1, byte[] out, int dx, int components, int colors) {
+            for (int j = 0, i = 0, c = 0; j < out.length; j++, i++) {
+                int a = row0[i] & 0xff;
+                int b = row0[i + dx] & 0xff;
+                int e = row1[i] & 0xff;
+                int f = row1[i + dx] & 0xff;
+                if (c < colors) {
+                    out[j] = TO_SRGB[(TO_LINEAR[a] + TO_LINEAR[b] + TO_LINEAR[e] + TO_LINEAR[f] + 2) >> 2];
+                } else {
+                    out[j] = (byte) ((a + b + e + f + 2) >> 2);
+                }
+                if (++c == components) {
+                    c = 0;
+                    i += dx;
+                }
+            }
+        }
+    }
+}
@@ -36,21 +36,51 @@
 package trb.jme.imaging;
 
 import java.awt.image.BufferedImage;
-import java.io.FileInputStream;
-import java.io.InputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+
+import com.jme3.texture.Image;
+import com.jme3.texture.Image.Format;
+import com.jme3.texture.image.ColorSpace;
+import com.jme3.util.BufferUtils;
+
 /**
  * Handles dealing with targa image files.
  * +--------------------------------------+
  * | File Header                          |
  * +--------------------------------------+
+ * | Image ID, Color Map                  |
+ * +--------------------------------------+
  * | Bitmap Data                          |
  * +--------------------------------------+
  *
+ * The pixels are decoded from a buffer, usually a mapping of the file, or
+ * streamed from a channel, into a buffer given by the caller, a row at a
+ * time.  Color mapped, true color and grey images are read, raw or run
+ * length encoded, at 8, 15/16, 24 and 32 bits a pixel.  The decoded pixels
+ * are 8 bit components in R G B (A) order, or a single grey component; 16
+ * bit pixels become RGBA when they have an alpha bit.  The caller picks
+ * whether the top or the bottom row comes first, whatever the origin of
+ * the file.
+ *
  * @author Scott Shaver
  */
 public class TargaFile implements ImageFile {
 
+    private static final int HEADER_SIZE = 18;
+
+    // image types
+    private static final int COLOR_MAPPED = 1;
+    private static final int TRUE_COLOR = 2;
+    private static final int GREY = 3;
+    private static final int RLE = 8;
+
     private byte  FHimageIDLength   =    0;
     private byte  FHcolorMapType    =    0; // 0 = no pallete
     private byte  FHimageType       =    0; // uncompressed RGB=2, uncompressed grayscale=3
@@ -63,11 +93,12 @@ public class TargaFile implements ImageFile {
     private short FHheight          =    0;
     private byte  FHbitCount        =    0; // 16,24,32
     private byte  FHimageDescriptor =    0; // 24 bit = 0x00, 32-bit=0x08
-    private int   filePointer       =    0;
-    private byte  fileContents[]    = null;
 
     private byte[] data = null;
 
+    // the color map expanded to decoded pixels
+    private byte[] palette;
+
     public TargaFile() {
     }
 
@@ -76,11 +107,11 @@ public class TargaFile implements ImageFile {
     }
 
     public int getWidth() {
-        return FHwidth;
+        return FHwidth & 0xffff;
     }
 
     public int getHeight() {
-        return FHheight;
+        return FHheight & 0xffff;
     }
 
     public int getBPP() {
@@ -91,29 +122,106 @@ public class TargaFile implements ImageFile {
         return data.length;
     }
 
+    /**
+     * Returns the number of bytes of a decoded pixel.
+     */
+    public int getComponents() {
+        int type = FHimageType & ~RLE;
+        int bits = type == COLOR_MAPPED ? FHcolorMapDepth : FHbitCount;
+        if (type == GREY)
+            return 1;
+        if (bits == 16)
+            return (FHimageDescriptor & 15) != 0 ? 4 : 3;
+        return bits == 32 ? 4 : 3;
+    }
+
+    /**
+     * Returns the number of bytes of the decoded image.
+     */
+    public int getDecodedSize() {
+        return getWidth() * getHeight() * getComponents();
+    }
+
+    /**
+     * Returns true if the first row of the file is the top one.
+     */
+    public boolean isTopOrigin() {
+        return (FHimageDescriptor & 0x20) != 0;
+    }
+
     public static BufferedImage getBufferedImage(String filename){
       TargaFile loader = new TargaFile();
-      loader.load(filename);
+      try {
+        Input input = open(filename);
+        try {
+          return loader.loadDirectImage(input);
+        } finally {
+          input.close();
+        }
+      } catch (IOException x) {
+        System.out.println(x.getMessage());
+        return null;
+      }
+    }
+
+    /**
+     * Decodes the file into a direct image, top row first.
+     */
+    public DirectBufferedImage loadDirectImage(ReadableByteChannel in) throws IOException {
+      try {
+        return loadDirectImage(new Input(in));
+      } finally {
+        in.close();
+      }
+    }
 
-      int width        = loader.getWidth(),
-          height       = loader.getHeight(),
-          bytePerPixel = loader.getBPP()/8;
+    private DirectBufferedImage loadDirectImage(Input input) throws IOException {
+      readHeader(input);
+      int components = getComponents();
+      DirectBufferedImage image = DirectBufferedImage.make(getWidth(), getHeight(),
+          components == 4 ? DirectBufferedImage.DIRECT_RGBA
+          : components == 3 ? DirectBufferedImage.DIRECT_RGB : DirectBufferedImage.DIRECT_GRAY);
+      decodePixels(input, image.getBuffer(), true);
+      return image;
+    }
 
-      BufferedImage bufferedImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+    /**
+     * Decodes a whole file held in a buffer into a jME image, top row
+     * first like the jME TGA loader does without flipping, which is what
+     * cube maps want.  The image is in sRGB, the files are colors.  The
+     * position of the buffer is not moved.
+     */
+    public static Image loadImage(ByteBuffer in) throws IOException {
+      TargaFile loader = new TargaFile();
+      Input input = new Input(in);
+      loader.readHeader(input);
+      ByteBuffer pixels = BufferUtils.createByteBuffer(loader.getDecodedSize());
+      loader.decodePixels(input, pixels, true);
+      pixels.clear();
+      int components = loader.getComponents();
+      Format format = components == 4 ? Format.RGBA8 : components == 3 ? Format.RGB8 : Format.Luminance8;
+      return new Image(format, loader.getWidth(), loader.getHeight(), pixels, ColorSpace.sRGB);
+    }
 
-      byte[] imageData = loader.getData();
+    /**
+     * Decodes a file held in a buffer, usually mapped, from its position
+     * to its limit into out from its position, which is moved past the
+     * image.  The position of in is not moved.
+     */
+    public void decode(ByteBuffer in, ByteBuffer out, boolean topDown) throws IOException {
+      Input input = new Input(in);
+      readHeader(input);
+      decodePixels(input, out, topDown);
+    }
 
-      for(int j = height - 1; j >= 0; j--)
-        for(int i = 0; i < width; i++) {
-          int  index = ((height - 1 - j) * width + i) * bytePerPixel;
-          byte alpha = (bytePerPixel == 4) ? imageData[index + 3] : (byte)255;
-          int color  = (       alpha         & 0xFF) << 24|
-                       (imageData[index + 2] & 0xFF) << 16|
-                       (imageData[index + 1] & 0xFF) <<  8|
-                       (imageData[index + 0] & 0xFF);
-          bufferedImage.setRGB(i,j, color);
-      }
-      return bufferedImage;
+    /**
+     * Decodes a file streamed from a channel into out from its position,
+     * which is moved past the image.  The channel is not closed.
+     */
+    public void decode(ReadableByteChannel in, ByteBuffer out, boolean topDown) throws IOException {
+      Input input = new Input(in);
+      readHeader(input);
+      decodePixels(input, out, topDown);
     }
 
   public void printHeaders() {
@@ -134,156 +242,296 @@ public class TargaFile implements ImageFile {
     System.out.println("     Image Descriptor:"+FHimageDescriptor);
   }
 
+  /**
+   * Loads the file into getData(), bottom row first.  Files are mapped,
+   * class path resources are streamed.
+   */
   public void load(String filename) {
-    // reset everything
-    FHimageIDLength   = 0;
-    FHcolorMapType    = 0;
-    FHimageType       = 0;
-    FHcolorMapOrigin  = 0;
-    FHcolorMapLength  = 0;
-    FHcolorMapDepth   = 0;
-    FHimageXOrigin    = 0;
-    FHimageYOrigin    = 0;
-    FHwidth           = 0;
-    FHheight          = 0;
-    FHbitCount        = 0;
-    FHimageDescriptor = 0;
-    filePointer       = 0;
-
-    InputStream  dis = ClassLoader.getSystemResourceAsStream(filename);
-
-    try{
-      if( dis == null)
-        dis = new FileInputStream(filename);
-
-      fileContents = new byte[dis.available()];
-      dis.read(fileContents);
-      try{dis.close();}catch(Exception x){}
-
-      // read the file header
-      FHimageIDLength   = (byte)readUnsignedByte();
-      FHcolorMapType    = (byte)readUnsignedByte();
-      FHimageType       = (byte)readUnsignedByte();
-      FHcolorMapOrigin  =       readShort();
-      FHcolorMapLength  = readShort();
-      FHcolorMapDepth   = (byte)readUnsignedByte();
-      FHimageXOrigin    =       readShort();
-      FHimageYOrigin    =       readShort();
-      FHwidth           =       readShort();
-      FHheight          =       readShort();
-      FHbitCount        = (byte)readUnsignedByte();
-      FHimageDescriptor = (byte)readUnsignedByte();
-
-      if(FHimageType!=2 && FHimageType!=3) { // only deal with these two types
-        if(FHimageType == 10)
-          loadCompressed();
-        fileContents = null;
-        return;
+    data = null;
+    try {
+      Input input = open(filename);
+      try {
+        readHeader(input);
+        data = new byte[getDecodedSize()];
+        decodePixels(input, ByteBuffer.wrap(data), false);
+      } finally {
+        input.close();
       }
-
-      int bytesPerPixel = (FHbitCount/8);
-
-      // allocate memory for the pixel data
-      data = new byte[FHwidth*FHheight*bytesPerPixel];
-      // read the pixel data
-      System.arraycopy(fileContents, filePointer, data, 0, data.length);
-
-      if(FHbitCount==24 || FHbitCount==32){
-        // swap the R and B values to get RGB, targa color format is BGR
-        for(int loop=0;loop<data.length;loop+=bytesPerPixel){
-          byte btemp = data[loop];
-          data[loop] = data[loop+2];
-          data[loop+2] = btemp;
-        }
-      }
-      fileContents = null;
     }
-    catch(Exception x){
+    catch(IOException x){
       x.printStackTrace();
       System.out.println(x.getMessage());
     }
-
   }
 
-  public void loadCompressed() {
-    printHeaders();
-    int bytesPerPixel = (FHbitCount/8);
-    data = new byte[FHwidth*FHheight*bytesPerPixel];
-
-    int pixelcount   = FHwidth*FHheight,
-        currentbyte  = 0,
-        currentpixel = 0;
-
-    byte[] colorbuffer = new byte[bytesPerPixel];
-
-    try{
-      do{
-        int chunkheader = 0;
-        chunkheader = (int)readUnsignedByte();
-        System.out.println(chunkheader);
-        if(chunkheader < 128){
-          chunkheader++;
-          for(short counter = 0; counter < chunkheader; counter++){
-
-            readColorBuffer(colorbuffer);
-            data[currentbyte + 0] = colorbuffer[2];
-            data[currentbyte + 1] = colorbuffer[1];
-            data[currentbyte + 2] = colorbuffer[0];
+  private static Input open(String filename) throws IOException {
+    InputStream stream = ClassLoader.getSystemResourceAsStream(filename);
+    if (stream != null)
+      return new Input(Channels.newChannel(stream));
+    RandomAccessFile file = new RandomAccessFile(filename, "r");
+    try {
+      FileChannel channel = file.getChannel();
+      return new Input(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+    } finally {
+      file.close();
+    }
+  }
 
+  private void readHeader(Input in) throws IOException {
+    in.require(HEADER_SIZE);
+    ByteBuffer b = in.buffer;
+    FHimageIDLength   = b.get();
+    FHcolorMapType    = b.get();
+    FHimageType       = b.get();
+    FHcolorMapOrigin  = readShort(b);
+    FHcolorMapLength  = readShort(b);
+    FHcolorMapDepth   = b.get();
+    FHimageXOrigin    = readShort(b);
+    FHimageYOrigin    = readShort(b);
+    FHwidth           = readShort(b);
+    FHheight          = readShort(b);
+    FHbitCount        = b.get();
+    FHimageDescriptor = b.get();
+
+    int type = FHimageType & ~RLE;
+    if (type != COLOR_MAPPED && type != TRUE_COLOR && type != GREY)
+      throw new IOException("Unsupported targa image type " + FHimageType);
+    if (type == GREY ? FHbitCount != 8
+        : type == COLOR_MAPPED ? FHbitCount != 8 || FHcolorMapType != 1
+        : FHbitCount != 15 && FHbitCount != 16 && FHbitCount != 24 && FHbitCount != 32)
+      throw new IOException("Unsupported targa pixel size " + FHbitCount + " for type " + FHimageType);
+    if (getWidth() == 0 || getHeight() == 0)
+      throw new IOException("Empty targa image");
+
+    in.skip(FHimageIDLength & 0xff);
+
+    // the color map is there even if the image does not use it
+    palette = null;
+    int entries = FHcolorMapLength & 0xffff;
+    if (FHcolorMapType == 1 && entries > 0) {
+      int depth = FHcolorMapDepth;
+      int entrySize = (depth + 7) / 8;
+      byte[] raw = new byte[entries * entrySize];
+      in.read(raw, raw.length);
+      if (type == COLOR_MAPPED) {
+        int components = getComponents();
+        int first = FHcolorMapOrigin & 0xffff;
+        palette = new byte[256 * components];
+        byte[] entry = new byte[components];
+        for (int i = 0; i < entries && first + i < 256; i++) {
+          convert(raw, i * entrySize, depth, entry, 0, 1);
+          System.arraycopy(entry, 0, palette, (first + i) * components, components);
+        }
+      }
+    }
+  }
 
-            if(bytesPerPixel == 4)
-              data[currentbyte + 3] = (byte)readUnsignedByte();
+  private static short readShort(ByteBuffer b){
+    int s1 = (b.get() & 0xFF),
+        s2 = (b.get() & 0xFF) << 8;
+    return ((short)(s1 | s2));
+  }
 
-            currentbyte += bytesPerPixel;
-            currentpixel++;
-            if(currentpixel > pixelcount)
-              throw new IOException("Too many pixels read");
+  /**
+   * Decodes the pixels following the header a row at a time.  Runs are
+   * filled by doubling copies of the run pixel, raw pixels are read a row
+   * or a packet at a time.
+   */
+  private void decodePixels(Input in, ByteBuffer out, boolean topDown) throws IOException {
+    int width = getWidth();
+    int height = getHeight();
+    int components = getComponents();
+    int stride = width * components;
+    int pixelSize = (FHbitCount + 7) / 8;
+    boolean rle = (FHimageType & RLE) != 0;
+    boolean rightToLeft = (FHimageDescriptor & 0x10) != 0;
+    boolean flip = isTopOrigin() != topDown;
+    int base = out.position();
+    if (out.remaining() < stride * height)
+      throw new IOException("The buffer is too small for a " + width + "x" + height + " targa image");
+
+    byte[] row = new byte[stride];
+    byte[] raw = new byte[width * pixelSize];
+    byte[] pixel = new byte[components];
+    // a packet may go on in the next row
+    int packet = 0;
+    boolean repeat = false;
+
+    for (int y = 0; y < height; y++) {
+      if (!rle) {
+        in.read(raw, raw.length);
+        convert(raw, 0, FHbitCount, row, 0, width);
+      } else {
+        int x = 0;
+        while (x < width) {
+          if (packet == 0) {
+            in.require(1);
+            int header = in.buffer.get() & 0xff;
+            packet = (header & 0x7f) + 1;
+            repeat = header >= 128;
+            if (repeat) {
+              in.read(raw, pixelSize);
+              convert(raw, 0, FHbitCount, pixel, 0, 1);
+            }
           }
-        }
-        else{
-          chunkheader -= 127;
-          readColorBuffer(colorbuffer);
-          for(short counter = 0; counter < chunkheader; counter++){																			// by the header
-            data[currentbyte + 0] = colorbuffer[2];
-            data[currentbyte + 1] = colorbuffer[1];
-            data[currentbyte + 2] = colorbuffer[0];
-
-            if(bytesPerPixel == 4)
-              data[currentbyte + 3] = (byte)readUnsignedByte();
-
-            currentbyte += bytesPerPixel;
-            currentpixel++;
-            if(currentpixel > pixelcount)
-              throw new IOException("Too many pixels read");
+          int n = Math.min(packet, width - x);
+          if (repeat) {
+            fill(row, x * components, pixel, n);
+          } else {
+            in.read(raw, n * pixelSize);
+            convert(raw, 0, FHbitCount, row, x * components, n);
           }
+          x += n;
+          packet -= n;
         }
-      } while (currentpixel < pixelcount);
+      }
+      if (rightToLeft)
+        reverse(row, components);
+
+      out.position(base + (flip ? height - 1 - y : y) * stride);
+      out.put(row);
     }
-    catch(Exception x){
-      x.printStackTrace();
-      System.out.println(x.getMessage());
+    out.position(base + stride * height);
+  }
+
+  /**
+   * Converts count file pixels of the given bit depth to decoded pixels.
+   */
+  private void convert(byte[] src, int s, int bits, byte[] dst, int d, int count) {
+    int type = FHimageType & ~RLE;
+    int components = getComponents();
+    if (type == COLOR_MAPPED && palette != null && src != null && bits == FHbitCount) {
+      for (int i = 0; i < count; i++, d += components) {
+        System.arraycopy(palette, (src[s + i] & 0xff) * components, dst, d, components);
+      }
+      return;
+    }
+    switch (bits) {
+      case 8:
+        System.arraycopy(src, s, dst, d, count);
+        break;
+      case 15:
+      case 16:
+        for (int i = 0; i < count; i++, s += 2) {
+          int v = (src[s] & 0xff) | (src[s + 1] & 0xff) << 8;
+          int r = v >> 10 & 31, g = v >> 5 & 31, b = v & 31;
+          dst[d++] = (byte) (r << 3 | r >> 2);
+          dst[d++] = (byte) (g << 3 | g >> 2);
+          dst[d++] = (byte) (b << 3 | b >> 2);
+          if (components == 4)
+            dst[d++] = (v & 0x8000) != 0 ? (byte) 255 : 0;
+        }
+        break;
+      case 24:
+        for (int i = 0; i < count; i++, s += 3) {
+          dst[d++] = src[s + 2];
+          dst[d++] = src[s + 1];
+          dst[d++] = src[s];
+        }
+        break;
+      default:
+        for (int i = 0; i < count; i++, s += 4) {
+          dst[d++] = src[s + 2];
+          dst[d++] = src[s + 1];
+          dst[d++] = src[s];
+          dst[d++] = src[s + 3];
+        }
     }
   }
 
-  private void readColorBuffer(byte[] buffer){
-    buffer[0] = (byte)readUnsignedByte();
-    buffer[1] = (byte)readUnsignedByte();
-    buffer[2] = (byte)readUnsignedByte();
+  /**
+   * Writes count copies of pixel, doubling what is already written.
+   */
+  private static void fill(byte[] row, int offset, byte[] pixel, int count) {
+    int length = count * pixel.length;
+    System.arraycopy(pixel, 0, row, offset, pixel.length);
+    for (int done = pixel.length; done < length; done *= 2) {
+      System.arraycopy(row, offset, row, offset + done, Math.min(done, length - done));
+    }
   }
 
-  private int readUnsignedByte(){
-	return (int) fileContents[filePointer++] & 0xFF;
+  private static void reverse(byte[] row, int components) {
+    byte[] pixel = new byte[components];
+    for (int l = 0, r = row.length - components; l < r; l += components, r -= components) {
+      System.arraycopy(row, l, pixel, 0, components);
+      System.arraycopy(row, r, row, l, components);
+      System.arraycopy(pixel, 0, row, r, components);
+    }
   }
 
-  private short readShort(){
-    int s1 = (fileContents[filePointer++] & 0xFF),
-        s2 = (fileContents[filePointer++] & 0xFF) << 8;
-    return ((short)(s1 | s2));
+  /**
+   * The file, a buffer with all of it or a buffer refilled from a
+   * channel.
+   */
+  private static class Input {
+    final ReadableByteChannel channel;
+    ByteBuffer buffer;
+
+    Input(ByteBuffer in) {
+      channel = null;
+      buffer = in.duplicate();
+    }
+
+    Input(ReadableByteChannel in) {
+      channel = in;
+      buffer = ByteBuffer.allocate(64 * 1024);
+      buffer.flip();
+    }
+
+    void close() throws IOException {
+      if (channel != null)
+        channel.close();
+    }
+
+    /**
+     * Makes sure n bytes can be read from the buffer.
+     */
+    void require(int n) throws IOException {
+      if (buffer.remaining() >= n)
+        return;
+      if (channel != null) {
+        if (buffer.capacity() < n) {
+          ByteBuffer larger = ByteBuffer.allocate(Math.max(n, buffer.capacity() * 2));
+          larger.put(buffer);
+          buffer = larger;
+        } else {
+          buffer.compact();
+        }
+        while (buffer.position() < n) {
+          if (channel.read(buffer) < 0)
+            break;
+        }
+        buffer.flip();
+      }
+      if (buffer.remaining() < n)
+        throw new IOException("Truncated targa file");
+    }
+
+    void read(byte[] dst, int length) throws IOException {
+      require(length);
+      buffer.get(dst, 0, length);
+    }
+
+    void skip(int n) throws IOException {
+      require(n);
+      buffer.position(buffer.position() + n);
+    }
   }
 
-  public static void main(String[] args) {
+  public static void main(String[] args) throws IOException {
     TargaFile tf = new TargaFile();
-    tf.load(args[0]);
-    tf.printHeaders();
+    RandomAccessFile file = new RandomAccessFile(new File(args[0]), "r");
+    try {
+      FileChannel channel = file.getChannel();
+      ByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      long time = System.nanoTime();
+      Image image = loadImage(in);
+      time = System.nanoTime() - time;
+      tf.decode(in, BufferUtils.createByteBuffer(image.getData(0).capacity()), false);
+      tf.printHeaders();
+      System.out.println(image + " in " + time / 1000000.0 + " ms");
+    } finally {
+      file.close();
+    }
   }
 }
\ No newline at end of file
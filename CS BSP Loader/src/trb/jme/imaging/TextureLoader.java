@@ -42,16 +42,19 @@ import java.awt.Transparency;
 import java.awt.color.ColorSpace;
 import java.awt.image.BufferedImage;
 import java.awt.image.ComponentColorModel;
-import java.io.BufferedOutputStream;
-import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.io.IOException;
 import java.net.URL;
-import java.nio.MappedByteBuffer;
-import java.nio.channels.FileChannel;
+import java.net.URLConnection;
 import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 /**
  * This object manages all the textures needed by the program.  Textures
@@ -59,6 +62,11 @@ import java.util.Vector;
  * be registered with the factory.  There are plans to allow the texture
  * factory to be streamed to disk for faster re-loading.
  *
+ * Loads are not serialized: different images are loaded in parallel, and
+ * threads asking for an image another thread is loading wait for that
+ * load instead of starting their own.  Loaded images are kept up to a byte
+ * budget and are shared, callers must not modify them.
+ *
  * @author David Yazel
  *
  */
@@ -93,10 +101,17 @@ public class TextureLoader {
         nBits, true, false, Transparency.TRANSLUCENT, 0);
 
     Hashtable tab;
-    Hashtable images;
     Vector path;
-    Vector jarPath;
     String cachePath = null;
+    ImageCacheArchive cache;
+    final ImageSearchPath searchPath = new ImageSearchPath();
+
+    // loaded images, access ordered so the eldest is the least recently used
+    private final LinkedHashMap<String, BufferedImage> images = new LinkedHashMap<String, BufferedImage>(100, 0.75f, true);
+    private long imageBytes;
+    private long imageBudget = 64L * 1024 * 1024;
+    // the loads in progress, a thread asking for one of them waits for it
+    private final ConcurrentHashMap<String, FutureTask<BufferedImage>> loading = new ConcurrentHashMap<String, FutureTask<BufferedImage>>();
 
     public static TextureLoader getInstance() {
         return tf;
@@ -108,26 +123,81 @@ public class TextureLoader {
      */
     public TextureLoader() {
         tab = new Hashtable(100);
-        images = new Hashtable(100);
         path = new Vector(10);
-        jarPath = new Vector(10);
         registerJarPath("/"); // registers the default Jar path
     }
 
     /**
      * if a cache path is set then the first time you load a texture it will
      * be saved off into a big file which can be memory mapped for
-     * super fast loading speed the second time around.
+     * super fast loading speed the second time around.  The file is
+     * textures.cache in the given directory, see ImageCacheArchive.
      * @param path
      */
-    public void setCachePath(String path) {
+    public synchronized void setCachePath(String path) {
+        if (cache != null) {
+            try {
+                cache.close();
+            } catch (IOException e) {
+                System.out.println(e);
+            }
+            cache = null;
+        }
         cachePath = path;
     }
+
+    /**
+     * Sets how many bytes of loaded images are kept in memory.
+     */
+    public void setImageBudget(long bytes) {
+        synchronized (images) {
+            imageBudget = bytes;
+            evict();
+        }
+    }
+
+    public long getImageBudget() {
+        synchronized (images) {
+            return imageBudget;
+        }
+    }
+
+    /**
+     * Forgets every loaded image.
+     */
+    public void clearImages() {
+        synchronized (images) {
+            images.clear();
+            imageBytes = 0;
+        }
+    }
+
+    /**
+     * Returns the cache archive, opening it the first time.  Returns null
+     * if there is no cache path or the archive cannot be opened.
+     */
+    private synchronized ImageCacheArchive getCache() {
+        if (cache == null && cachePath != null) {
+            try {
+                File dir = new File(cachePath);
+                dir.mkdirs();
+                cache = new ImageCacheArchive(new File(dir, "textures.cache"));
+            } catch (IOException e) {
+                System.out.println("Cannot open texture cache in " + cachePath + ": " + e);
+                cachePath = null;
+            }
+        }
+        return cache;
+    }
+
     /**
      * This will register a path for the texture loader to search when
      * attemping to locate textures.  Each path should end with a /
+     * The files below it are indexed once and the index follows the
+     * changes of the directory.
      */
     public void registerPath(String name) {
+        searchPath.addDirectory(name);
         char lastChar = name.charAt(name.length() - 1);
 
         if ( (lastChar == '/') || (lastChar == '\\') ||
@@ -143,10 +213,14 @@ public class TextureLoader {
      * attemping to locate textures.
      */
     public void registerJarPath(String jarName) {
-        jarPath.addElement(jarName);
+        searchPath.addClasspathFolder(getClass().getClassLoader(), jarName);
     }
 
 
+    /**
+     * Returns the file of an image, looked up in the index of the
+     * registered paths ignoring case, or null.
+     */
     public String findImageFile(String name) {
         if ( (!usePNG) && (name.toLowerCase().endsWith(".png"))) {
             System.out.println("Converting PNG " + name);
@@ -154,53 +228,26 @@ public class TextureLoader {
         }
 
         // check to see if the image name is already fully qualified.
-        if ((name.indexOf("/") >= 0) || (name.indexOf("\\")>=0)) {
-            if (new File(name).isFile()) {
-                return name;
-            }
+        if (new File(name).isAbsolute()) {
+            return new File(name).isFile() ? name : null;
         }
 
-        //accumulate search path to print as part of error msg if file not found
-        StringBuffer searchPath = new StringBuffer();
-
-        for (int i = 0; i < path.size(); i++) {
-            String filename = (String) path.elementAt(i);
-            filename += name;
-
-            searchPath.append(filename);
-            searchPath.append(";");
-
-            File f = new File(filename);
-
-            if (f.exists()) {
-                return filename;
+        String filename = searchPath.findFile(name);
+        if (filename == null && ((name.indexOf("/") >= 0) || (name.indexOf("\\")>=0))) {
+            // relative to the working directory
+            if (new File(name).isFile()) {
+                return name;
             }
         }
-
-        //System.out.println("Cannot find image file in texture loader : "+name+", in path : "+searchPath);
-        return null;
+        return filename;
     }
-    
-    public URL findImageFileJar (String name) {
 
-        //accumulate search path to print as part of error msg if file not found
-        StringBuffer searchPath = new StringBuffer();
-
-        for (int i = 0; i < jarPath.size(); i++) {
-            String filename = (String) jarPath.elementAt(i);
-            filename += name;
-
-            searchPath.append(filename);
-            searchPath.append(";");
-
-            URL imageURL = this.getClass().getResource(filename);
-            if (imageURL != null)
-                return imageURL;
-        }
-        
-        //System.out.println("Cannot find image file in texture loader : "+name+", in path : "+searchPath);
-
-        return null;
+    /**
+     * Returns the URL of an image on the class path, looked up in the index
+     * of the registered jar paths ignoring case, or null.
+     */
+    public URL findImageFileJar (String name) {
+        return searchPath.findResource(name);
     }
 
     public String getSearchPath() {
@@ -251,63 +298,125 @@ public class TextureLoader {
 	
     /**
      * Loads the image as fast as it can.  If it cannot load the
-     * image then it returns null.
+     * image then it throws an Error.
      */
-    public synchronized BufferedImage loadImageFast(String name, boolean expectAlpha) {
+    public BufferedImage loadImageFast(final String name, final boolean expectAlpha) {
+        final String key = expectAlpha ? name + "#alpha" : name;
+        BufferedImage im;
+        synchronized (images) {
+            im = images.get(key);
+        }
+        if (im != null) {
+            return im;
+        }
+
+        FutureTask<BufferedImage> task = new FutureTask<BufferedImage>(new Callable<BufferedImage>() {
+            public BufferedImage call() throws Exception {
+                BufferedImage im = readImage(name, key, expectAlpha);
+                keep(key, im);
+                return im;
+            }
+        });
+        FutureTask<BufferedImage> load = loading.putIfAbsent(key, task);
+        if (load == null) {
+            load = task;
+            try {
+                task.run();
+            } finally {
+                loading.remove(key, task);
+            }
+        }
+
         try {
+            return load.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new Error("Interrupted while loading image " + name);
+        } catch (ExecutionException e) {
+            System.out.println(e.getCause());
+            throw new Error("Cannot load image " + name);
+        }
+    }
 
-            String cacheName = null;
-            if (cachePath != null) {
-                File f = new File(name);
-                cacheName = cachePath+f.getName() + ".img";
-
-                f = new File(cacheName);
-                if (f.exists()) {
-                    FileInputStream fs = new FileInputStream(f);
-                    FileChannel fc = fs.getChannel();
-                    MappedByteBuffer bb = fc.map(FileChannel.MapMode.READ_ONLY,0,f.length());
-                    boolean hasAlpha = (bb.getInt()==1) ? true : false;
-                    int width = bb.getInt();
-                    int height = bb.getInt();
-                    DirectBufferedImage im = null;
-                    if (hasAlpha) im = (DirectBufferedImage)DirectBufferedImage.getDirectImageRGBA(width,height);
-                    else im = (DirectBufferedImage)DirectBufferedImage.getDirectImageRGB(width,height);
-                    bb.get(im.getBackingStore());
-                    return im;
-                }
+    private void keep(String key, BufferedImage im) {
+        synchronized (images) {
+            BufferedImage old = images.put(key, im);
+            if (old != null) {
+                imageBytes -= sizeOf(old);
             }
+            imageBytes += sizeOf(im);
+            evict();
+        }
+    }
 
-            BufferedImage im = null;
-            try {
-                // Loads image directly
-                String filename = name;
-                if (!(name.indexOf("\\")>0))
-                    filename = findImageFile(name);
-                    
-                im = DirectBufferedImage.loadDirectImage(filename, expectAlpha);
-            } catch (Exception e) {
-                
-                // Tries to load image from a Jar file
-                URL imageUrl = findImageFileJar(name);
-                im = DirectBufferedImage.loadDirectImage(imageUrl, expectAlpha);
+    private void evict() {
+        Iterator<Map.Entry<String, BufferedImage>> it = images.entrySet().iterator();
+        while (imageBytes > imageBudget && it.hasNext()) {
+            imageBytes -= sizeOf(it.next().getValue());
+            it.remove();
+        }
+    }
+
+    private static long sizeOf(BufferedImage im) {
+        return ((DirectBufferedImage) im).getByteSize();
+    }
+
+    /**
+     * Reads an image from the cache archive, or decodes it and adds it to
+     * the archive under key, which tells the alpha and plain decodes apart.
+     */
+    private BufferedImage readImage(String name, String key, boolean expectAlpha) throws IOException {
+        // the source is found first, its time and length validate the cached copy
+        String filename = name;
+        if (!(name.indexOf("\\")>0))
+            filename = findImageFile(name);
+        URL imageUrl = null;
+        long modified;
+        long length;
+        if (filename != null) {
+            File f = new File(filename);
+            modified = f.lastModified();
+            length = f.length();
+        } else {
+            imageUrl = findImageFileJar(name);
+            if (imageUrl == null) {
+                throw new IOException("Cannot find image " + name);
             }
-	    
-	    
-            if (cachePath != null) {
-                DataOutputStream ds = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(cacheName)));
-                DirectBufferedImage dbi = (DirectBufferedImage)im;
-                ds.writeInt(dbi.getColorModel().hasAlpha() ? 1 : 0);
-                ds.writeInt(dbi.getWidth());
-                ds.writeInt(dbi.getHeight());
-                ds.write(dbi.getBackingStore());
-                ds.close();
-                ds = null;
+            URLConnection connection = imageUrl.openConnection();
+            modified = connection.getLastModified();
+            length = connection.getContentLengthLong();
+        }
+
+        ImageCacheArchive cache = getCache();
+        if (cache != null) {
+            try {
+                ImageCacheArchive.Entry entry = cache.get(key, modified, length);
+                if (entry != null) {
+                    // the image is the mapped pixels, read only like every shared image
+                    return DirectBufferedImage.wrap(entry.getWidth(), entry.getHeight(), entry.getType(), entry.getData());
+                }
+            } catch (IOException e) {
+                System.out.println("Cannot read " + name + " from the texture cache: " + e);
+            } catch (IllegalArgumentException e) {
+                // an entry too short for its size, decoded again below
+                System.out.println("Cannot read " + name + " from the texture cache: " + e);
             }
-            return im;
+        }
 
-        } catch (Exception notFound) {
-        	System.out.println(notFound);
-            throw new Error("Cannot load image " + name);
+        DirectBufferedImage im;
+        if (filename != null) {
+            im = (DirectBufferedImage) DirectBufferedImage.loadDirectImage(filename, expectAlpha);
+        } else {
+            im = (DirectBufferedImage) DirectBufferedImage.loadDirectImage(imageUrl, expectAlpha);
+        }
+
+        if (cache != null) {
+            try {
+                cache.put(key, modified, length, im.getDirectType(), im.getWidth(), im.getHeight(), im.getBuffer());
+            } catch (IOException e) {
+                System.out.println("Cannot write " + name + " to the texture cache: " + e);
+            }
         }
+        return im;
     }
 }
@@ -1,17 +1,59 @@
 package net.jmecn.bsp;
 
+import java.util.concurrent.Future;
+
 import com.jme3.app.SimpleApplication;
-import com.jme3.scene.Spatial;
+import com.jme3.font.BitmapText;
+import com.jme3.scene.plugins.bsp.BSPLoadListener;
+import com.jme3.scene.plugins.bsp.BSPLoadState;
 import com.jme3.scene.plugins.bsp.BSPLoader;
+import com.jme3.scene.plugins.bsp.BSPWorld;
+import com.jme3.texture.plugins.wad.WADLoader;
 
 public class TestBSPLoader extends SimpleApplication {
 
+	private BitmapText progressText;
+	private BSPLoadState loadState;
+	private volatile float progress;
+
 	@Override
 	public void simpleInitApp() {
 		assetManager.registerLoader(BSPLoader.class, "bsp");
-		
-		Spatial model = assetManager.loadModel("cstrike/maps/de_dust2.bsp");
-		rootNode.attachChild(model);
+		assetManager.registerLoader(WADLoader.class, "wad");
+
+		// 后台加载地图，渲染线程不等待
+		Future<BSPWorld> future = BSPLoader.loadAsync(assetManager, "cstrike/maps/de_dust2.bsp", new BSPLoadListener() {
+			@Override
+			public void progress(Phase phase, float phaseProgress, float total) {
+				progress = total;
+			}
+		});
+
+		// 加载完成后每帧挂上几个区域，最后根据PVS隐藏看不见的区域
+		loadState = new BSPLoadState(future, rootNode);
+		stateManager.attach(loadState);
+
+		progressText = new BitmapText(guiFont);
+		progressText.setLocalTranslation(10, cam.getHeight() - 10, 0);
+		guiNode.attachChild(progressText);
+
+		// 地图的单位是英寸
+		cam.setFrustumPerspective(45f, (float) cam.getWidth() / cam.getHeight(), 1f, 8192f);
+		flyCam.setMoveSpeed(400f);
+	}
+
+	@Override
+	public void simpleUpdate(float tpf) {
+		if (progressText == null)
+			return;
+		if (loadState.getFailure() != null) {
+			progressText.setText("Cannot load the map: " + loadState.getFailure());
+		} else if (loadState.isDone()) {
+			progressText.removeFromParent();
+			progressText = null;
+		} else {
+			progressText.setText(String.format("Loading %.0f%%, attached %.0f%%", progress * 100, loadState.getAttachProgress() * 100));
+		}
 	}
 
 	public static void main(String[] args) {